@@ -0,0 +1,109 @@
+package com.cavetale.caves;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The stages before theming, per chunk.  Each one includes the
+ * stages before it, so the cost of a stage is the difference to the
+ * previous benchmark.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AnalyzeBenchmark {
+    /**
+     * Copy the voxels, so every chunk starts out pristine.
+     */
+    @Benchmark
+    public Object copy(SyntheticChunks chunks) {
+        return chunks.copy();
+    }
+
+    /**
+     * Heightmaps from the voxels.
+     */
+    @Benchmark
+    public Object prepare(SyntheticChunks chunks) {
+        return chunks.prepare(Biomes.Type.PLAINS);
+    }
+
+    /**
+     * Heightmaps of a chunk without caves.
+     */
+    @Benchmark
+    public Object prepareSolid(SyntheticChunks chunks) {
+        return chunks.prepareSolid();
+    }
+
+    /**
+     * The default probe on chunks with caves, which hits.
+     */
+    @Benchmark
+    public boolean probe(SyntheticChunks chunks) {
+        return probe(chunks, chunks.prepare(Biomes.Type.PLAINS), 4);
+    }
+
+    /**
+     * The default probe on a chunk without caves, which misses.
+     */
+    @Benchmark
+    public boolean probeMiss(SyntheticChunks chunks) {
+        return probe(chunks, chunks.prepareSolid(), 4);
+    }
+
+    /**
+     * The certain probe on a chunk without caves, which sorts all
+     * its sections and misses.
+     */
+    @Benchmark
+    public Object probeMissExact(SyntheticChunks chunks) {
+        ChunkJob job = chunks.prepareSolid();
+        return SectionMask.compute(job.voxels, job.chunkX, job.chunkZ, SyntheticWorld.SEA_LEVEL + 1,
+                                   chunks.traits::isInside);
+    }
+
+    private static boolean probe(SyntheticChunks chunks, ChunkJob job, int stride) {
+        final MaterialTraits traits = chunks.traits;
+        return CaveProbe.probe(job.voxels, job.sky, job.chunkX, job.chunkZ, stride, traits::isEmpty,
+                               m -> traits.canReplace(m) || traits.isInside(m));
+    }
+
+    /**
+     * Scan, classify, place ores and assign types.
+     */
+    @Benchmark
+    public Object analyze(SyntheticChunks chunks) {
+        ChunkJob job = chunks.prepare(Biomes.Type.PLAINS);
+        chunks.decorator.analyze(job);
+        return job;
+    }
+
+    /**
+     * Noise at every surface, at the scales the themes use.
+     */
+    @Benchmark
+    public double noise(SyntheticChunks chunks) {
+        ChunkJob job = chunks.prepare(Biomes.Type.PLAINS);
+        chunks.decorator.analyze(job);
+        final SurfaceIndex surfaces = job.surfaces;
+        double sum = 0.0;
+        for (int i = 0; i < surfaces.size(); i += 1) {
+            final int x = surfaces.getX(i);
+            final int y = surfaces.getY(i);
+            final int z = surfaces.getZ(i);
+            sum += job.noise.get(x, y, z, 1.0);
+            sum += job.noise.get(x, y, z, 8.0);
+            sum += job.noise.get(x, y, z, 16.0);
+        }
+        return sum;
+    }
+}
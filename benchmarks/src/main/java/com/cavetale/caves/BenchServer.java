@@ -0,0 +1,210 @@
+package com.cavetale.caves;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.logging.Logger;
+import org.bukkit.Bukkit;
+import org.bukkit.Material;
+import org.bukkit.NamespacedKey;
+import org.bukkit.Server;
+import org.bukkit.Tag;
+import org.bukkit.block.data.Bisected;
+import org.bukkit.block.data.BlockData;
+import org.bukkit.block.data.Directional;
+import org.bukkit.block.data.MultipleFacing;
+import org.bukkit.block.data.Orientable;
+import org.bukkit.block.data.Waterlogged;
+import org.bukkit.block.data.type.Lantern;
+import org.bukkit.block.data.type.Leaves;
+
+/**
+ * Stand-in for the few server services the decorator reaches
+ * through the API: block data and block tags.  Everything is a
+ * dynamic proxy, so nothing breaks when the API grows.  Block data
+ * is interned by Blocks, so the proxies stay off the hot path.
+ */
+final class BenchServer {
+    private static final Logger LOGGER = Logger.getLogger("Benchmark");
+    private static final Set<String> FLOWERS = Set.of("DANDELION", "POPPY", "BLUE_ORCHID", "ALLIUM",
+                                                      "AZURE_BLUET", "RED_TULIP", "ORANGE_TULIP",
+                                                      "WHITE_TULIP", "PINK_TULIP", "OXEYE_DAISY",
+                                                      "CORNFLOWER", "LILY_OF_THE_VALLEY", "WITHER_ROSE",
+                                                      "SUNFLOWER", "LILAC", "ROSE_BUSH", "PEONY",
+                                                      "TORCHFLOWER", "PITCHER_PLANT", "FLOWERING_AZALEA",
+                                                      "FLOWERING_AZALEA_LEAVES", "MANGROVE_PROPAGULE",
+                                                      "CHERRY_LEAVES", "PINK_PETALS", "SPORE_BLOSSOM");
+    private static final Set<String> CROPS = Set.of("WHEAT", "CARROTS", "POTATOES", "BEETROOTS",
+                                                    "MELON_STEM", "PUMPKIN_STEM", "TORCHFLOWER_CROP",
+                                                    "PITCHER_CROP");
+    private static boolean installed;
+
+    private BenchServer() { }
+
+    @FunctionalInterface
+    interface Handler {
+        Object handle(Method method, Object[] args) throws Throwable;
+    }
+
+    /**
+     * Proxy an interface.  Object methods go by identity unless the
+     * handler answers them.
+     */
+    static <T> T proxy(Class<T> type, Handler handler) {
+        InvocationHandler invocationHandler = (proxy, method, args) -> {
+            final Object[] arguments = args != null ? args : new Object[0];
+            if (method.getDeclaringClass() == Object.class) {
+                switch (method.getName()) {
+                case "equals": return proxy == arguments[0];
+                case "hashCode": return System.identityHashCode(proxy);
+                case "toString": return type.getSimpleName() + "@" + Integer.toHexString(System.identityHashCode(proxy));
+                default: break;
+                }
+            }
+            return handler.handle(method, arguments);
+        };
+        return type.cast(Proxy.newProxyInstance(BenchServer.class.getClassLoader(), new Class<?>[] {type},
+                                                invocationHandler));
+    }
+
+    static Object defaultValue(Class<?> type) {
+        if (type == boolean.class) return false;
+        if (type == int.class) return 0;
+        if (type == long.class) return 0L;
+        if (type == double.class) return 0.0;
+        if (type == float.class) return 0.0f;
+        if (type == short.class) return (short) 0;
+        if (type == byte.class) return (byte) 0;
+        if (type == char.class) return (char) 0;
+        return null;
+    }
+
+    static synchronized void install() {
+        if (installed) return;
+        installed = true;
+        Server server = proxy(Server.class, (method, args) -> {
+                switch (method.getName()) {
+                case "getLogger": return LOGGER;
+                case "getName": case "getVersion": case "getBukkitVersion": case "getMinecraftVersion":
+                    return "Benchmark";
+                case "isPrimaryThread": return true;
+                case "createBlockData":
+                    if (args.length == 1 && args[0] instanceof Material material) {
+                        return FakeBlockData.create(material);
+                    }
+                    if (args.length == 1 && args[0] instanceof String string) {
+                        // Block states are not needed for benchmarks
+                        final int bracket = string.indexOf('[');
+                        Material material = Material.matchMaterial(bracket < 0 ? string : string.substring(0, bracket));
+                        if (material != null) return FakeBlockData.create(material);
+                    }
+                    throw new UnsupportedOperationException("createBlockData" + Arrays.toString(args));
+                case "getTag":
+                    return tag((NamespacedKey) args[1]);
+                default: return defaultValue(method.getReturnType());
+                }
+            });
+        Bukkit.setServer(server);
+    }
+
+    /**
+     * The block tags the decorator asks for, by material name.
+     */
+    private static Tag<?> tag(NamespacedKey key) {
+        final String name = key.getKey();
+        return proxy(Tag.class, (method, args) -> {
+                switch (method.getName()) {
+                case "getKey": return key;
+                case "getValues": return Set.of();
+                case "isTagged": {
+                    if (!(args[0] instanceof Material material)) return false;
+                    final String it = material.name();
+                    switch (name) {
+                    case "fences": return it.endsWith("_FENCE");
+                    case "flowers": return FLOWERS.contains(it);
+                    case "crops": return CROPS.contains(it);
+                    case "rails": return it.endsWith("RAIL");
+                    case "leaves": return it.endsWith("_LEAVES");
+                    case "logs": return it.endsWith("_LOG") || it.endsWith("_WOOD");
+                    default: return false;
+                    }
+                }
+                default: return defaultValue(method.getReturnType());
+                }
+            });
+    }
+
+    /**
+     * Block data as a material plus a map of properties, set and
+     * read through the setters and getters of the block data
+     * interfaces the decorator uses.
+     */
+    static final class FakeBlockData implements InvocationHandler {
+        private static final Class<?>[] INTERFACES = {
+            BlockData.class,
+            Orientable.class,
+            Directional.class,
+            MultipleFacing.class,
+            Leaves.class,
+            Bisected.class,
+            Waterlogged.class,
+            Lantern.class,
+        };
+        private final Material material;
+        private final Map<String, Object> properties;
+
+        private FakeBlockData(final Material material, final Map<String, Object> properties) {
+            this.material = material;
+            this.properties = properties;
+        }
+
+        static BlockData create(Material material) {
+            return create(material, new TreeMap<>());
+        }
+
+        private static BlockData create(Material material, Map<String, Object> properties) {
+            return (BlockData) Proxy.newProxyInstance(BenchServer.class.getClassLoader(), INTERFACES,
+                                                      new FakeBlockData(material, properties));
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) {
+            final String name = method.getName();
+            final int argc = args != null ? args.length : 0;
+            switch (name) {
+            case "getMaterial": return material;
+            case "clone": return create(material, new TreeMap<>(properties));
+            case "equals": case "matches":
+                return args[0] != null
+                    && Proxy.isProxyClass(args[0].getClass())
+                    && Proxy.getInvocationHandler(args[0]) instanceof FakeBlockData other
+                    && other.material == material
+                    && other.properties.equals(properties);
+            case "hashCode": return Objects.hash(material, properties);
+            case "toString": case "getAsString": return material + "" + properties;
+            case "setFace":
+                properties.put("face:" + args[0], args[1]);
+                return null;
+            case "hasFace":
+                return properties.getOrDefault("face:" + args[0], false);
+            default: break;
+            }
+            if (argc == 1 && name.startsWith("set")) {
+                properties.put(name.substring(3), args[0]);
+                return null;
+            }
+            if (argc == 0 && name.startsWith("get") && properties.containsKey(name.substring(3))) {
+                return properties.get(name.substring(3));
+            }
+            if (argc == 0 && name.startsWith("is") && properties.containsKey(name.substring(2))) {
+                return properties.get(name.substring(2));
+            }
+            return defaultValue(method.getReturnType());
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package com.cavetale.caves;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Whole chunks, with every surface forced to one theme.  The cost
+ * of a theme is the difference to AnalyzeBenchmark.analyze.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DecoratorBenchmark {
+    // Biomes.Type
+    @Param({"COLD", "MESA", "SAVANNA", "MUSHROOM", "DESERT", "JUNGLE", "OCEAN", "MOUNTAIN",
+            "SWAMP", "DARK_FOREST", "SPRUCE", "PLAINS", "FOREST", "RIVER", "CAVES", "NETHER",
+            "END", "DEEP_DARK", "CUSTOM"})
+    public String theme;
+    private Biomes.Type type;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        type = Biomes.Type.valueOf(theme);
+    }
+
+    /**
+     * @return the number of blocks written
+     */
+    @Benchmark
+    public int decorate(SyntheticChunks chunks) {
+        ChunkJob job = chunks.prepare(type);
+        chunks.decorator.analyze(job);
+        chunks.decorator.decorate(job);
+        return ((VoxelArray) job.voxels).getWrites();
+    }
+}
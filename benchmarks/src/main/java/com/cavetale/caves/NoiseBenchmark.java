@@ -0,0 +1,64 @@
+package com.cavetale.caves;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * One lattice layer of noise at scale 8, point by point and as a
+ * batch.  The batch falls back to points if the fork cannot load
+ * the Vector API.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "--add-modules=jdk.incubator.vector")
+public class NoiseBenchmark {
+    @State(Scope.Thread)
+    public static class Layer {
+        static final int SIZE = 14;
+        static final double SCALE = 8.0;
+        protected BatchNoise noise;
+        protected double[] xs = new double[SIZE * SIZE];
+        protected double[] ys = new double[SIZE * SIZE];
+        protected double[] zs = new double[SIZE * SIZE];
+        protected double[] out = new double[SIZE * SIZE];
+
+        @Setup(Level.Trial)
+        public void setup() {
+            noise = new BatchNoise(SyntheticChunks.SEED, true);
+            for (int z = 0; z < SIZE; z += 1) {
+                for (int x = 0; x < SIZE; x += 1) {
+                    xs[z * SIZE + x] = (x * 2 - 4) / SCALE;
+                    ys[z * SIZE + x] = 12 / SCALE;
+                    zs[z * SIZE + x] = (z * 2 - 4) / SCALE;
+                }
+            }
+        }
+    }
+
+    @Benchmark
+    public double points(Layer layer) {
+        double sum = 0.0;
+        for (int i = 0; i < layer.out.length; i += 1) {
+            sum += layer.noise.noise(layer.xs[i], layer.ys[i], layer.zs[i]);
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public double[] batch(Layer layer) {
+        layer.noise.noise(layer.xs, layer.ys, layer.zs, layer.out, layer.out.length);
+        return layer.out;
+    }
+}
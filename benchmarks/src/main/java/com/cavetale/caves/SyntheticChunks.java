@@ -0,0 +1,96 @@
+package com.cavetale.caves;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * A row of synthetic chunks and a decorator for them, shared by all
+ * benchmarks.  The surface count of every chunk is measured once
+ * and must come out the same twice, or the benchmark would not be
+ * deterministic.
+ */
+@State(Scope.Thread)
+public class SyntheticChunks {
+    static final long SEED = 0x5EEDCAFEL;
+    static final int COUNT = 16;
+    protected SyntheticWorld world;
+    protected MaterialTraits traits;
+    protected CaveDecorator decorator;
+    protected VoxelArray[] chunks;
+    // Stone without caves, for probe misses
+    protected VoxelArray solid;
+    protected int[] surfaceCounts;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        BenchServer.install();
+        world = new SyntheticWorld(SEED);
+        Biomes biomes = new Biomes(Logger.getLogger("Biomes"));
+        List<String> errors = new ArrayList<>();
+        ThemeTable themes = ThemeTable.defaults(errors);
+        if (!errors.isEmpty()) throw new IllegalStateException("themes.yml: " + errors);
+        traits = MaterialTraits.build(List.of(), errors);
+        // Probe with certainty, so every surface is analyzed
+        final CaveDecorator.Options options = CaveDecorator.Options.DEFAULTS.withProbeStride(1);
+        decorator = new CaveDecorator(null, SEED, biomes, traits, options, null, new Metrics(), () -> themes);
+        solid = world.getSolidChunkAt(0, 0);
+        chunks = new VoxelArray[COUNT];
+        surfaceCounts = new int[COUNT];
+        for (int i = 0; i < COUNT; i += 1) {
+            chunks[i] = world.getChunkAt(chunkX(i), chunkZ(i));
+            surfaceCounts[i] = countSurfaces(i);
+            if (countSurfaces(i) != surfaceCounts[i]) {
+                throw new IllegalStateException("Surface count differs: " + chunkX(i) + "," + chunkZ(i));
+            }
+        }
+    }
+
+    private static int chunkX(int index) {
+        return index * 3;
+    }
+
+    private static int chunkZ(int index) {
+        return index * 5;
+    }
+
+    private int countSurfaces(int index) {
+        ChunkJob job = decorator.prepare(chunks[index].copy(), chunkX(index), chunkZ(index), Biomes.Type.PLAINS);
+        decorator.analyze(job);
+        int count = 0;
+        for (int i = 0; i < job.surfaces.size(); i += 1) {
+            if (!job.surfaces.isRemoved(i)) count += 1;
+        }
+        return count;
+    }
+
+    /**
+     * A pristine copy of the next chunk.  The chunks take turns, so
+     * no single one dominates.
+     */
+    VoxelArray copy() {
+        final VoxelArray result = chunks[next].copy();
+        next = (next + 1) % COUNT;
+        return result;
+    }
+
+    /**
+     * Prepare a job for a pristine copy of the next chunk.
+     */
+    ChunkJob prepare(Biomes.Type type) {
+        final int index = next;
+        return decorator.prepare(copy(), chunkX(index), chunkZ(index), type);
+    }
+
+    /**
+     * Prepare a job for a pristine copy of the solid chunk.
+     */
+    ChunkJob prepareSolid() {
+        return decorator.prepare(solid.copy(), 0, 0, Biomes.Type.PLAINS);
+    }
+}
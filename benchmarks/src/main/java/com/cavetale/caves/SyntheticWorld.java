@@ -0,0 +1,122 @@
+package com.cavetale.caves;
+
+import java.util.HashMap;
+import java.util.Map;
+import org.bukkit.Material;
+import org.bukkit.util.noise.SimplexNoiseGenerator;
+
+/**
+ * An endless world of stone, carved by noise into caves.  The same
+ * seed always yields the same blocks.  Chunks are handed out as
+ * flat voxel arrays, each with its 8 neighbors, just like a
+ * ChunkView would capture them.
+ */
+final class SyntheticWorld {
+    static final int MIN_HEIGHT = -64;
+    static final int MAX_HEIGHT = 320;
+    static final int SEA_LEVEL = 64;
+    private static final int LAVA_LEVEL = -54;
+    private final SimplexNoiseGenerator noise;
+    private final Map<Long, Material[]> columns = new HashMap<>();
+
+    SyntheticWorld(final long seed) {
+        this.noise = new SimplexNoiseGenerator(seed);
+    }
+
+    /**
+     * The chunk and its neighbors.
+     */
+    public VoxelArray getChunkAt(int chunkX, int chunkZ) {
+        VoxelArray result = VoxelArray.around(chunkX, chunkZ, MIN_HEIGHT, MAX_HEIGHT);
+        for (int dz = -1; dz <= 1; dz += 1) {
+            for (int dx = -1; dx <= 1; dx += 1) {
+                final int cx = chunkX + dx;
+                final int cz = chunkZ + dz;
+                final Material[] blocks = column(cx, cz);
+                for (int y = MIN_HEIGHT; y < MAX_HEIGHT; y += 1) {
+                    for (int z = 0; z < 16; z += 1) {
+                        for (int x = 0; x < 16; x += 1) {
+                            final Material material = blocks[index(x, y, z)];
+                            if (material == Material.AIR) continue;
+                            result.set((cx << 4) + x, y, (cz << 4) + z, material);
+                        }
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * The chunk and its neighbors as stone up to sea level, without
+     * any caves, like the inside of a mountain.
+     */
+    public VoxelArray getSolidChunkAt(int chunkX, int chunkZ) {
+        VoxelArray result = VoxelArray.around(chunkX, chunkZ, MIN_HEIGHT, MAX_HEIGHT);
+        final int ax = (chunkX - 1) << 4;
+        final int az = (chunkZ - 1) << 4;
+        for (int y = MIN_HEIGHT; y <= SEA_LEVEL; y += 1) {
+            for (int z = az; z < az + 48; z += 1) {
+                for (int x = ax; x < ax + 48; x += 1) {
+                    result.set(x, y, z, Material.STONE);
+                }
+            }
+        }
+        return result;
+    }
+
+    private static int index(int x, int y, int z) {
+        return (y - MIN_HEIGHT) << 8 | (z & 15) << 4 | (x & 15);
+    }
+
+    private Material[] column(int chunkX, int chunkZ) {
+        return columns.computeIfAbsent(BulkJob.chunkKey(chunkX, chunkZ), key -> generate(chunkX, chunkZ));
+    }
+
+    private Material[] generate(int chunkX, int chunkZ) {
+        Material[] blocks = new Material[(MAX_HEIGHT - MIN_HEIGHT) << 8];
+        for (int z = 0; z < 16; z += 1) {
+            for (int x = 0; x < 16; x += 1) {
+                final int wx = (chunkX << 4) + x;
+                final int wz = (chunkZ << 4) + z;
+                final int surface = SEA_LEVEL + (int) (12.0 * noise.noise(wx / 96.0, wz / 96.0));
+                for (int y = MIN_HEIGHT; y < MAX_HEIGHT; y += 1) {
+                    final Material material;
+                    if (y > surface) {
+                        material = Material.AIR;
+                    } else if (isCave(wx, y, wz, surface)) {
+                        material = y <= LAVA_LEVEL ? Material.LAVA : Material.CAVE_AIR;
+                    } else {
+                        material = stone(wx, y, wz, surface);
+                    }
+                    blocks[index(x, y, z)] = material;
+                }
+            }
+        }
+        return blocks;
+    }
+
+    private boolean isCave(int x, int y, int z, int surface) {
+        if (y > surface - 6 || y <= MIN_HEIGHT + 2) return false;
+        // Large chambers
+        if (noise.noise(x / 40.0, y / 20.0, z / 40.0) > 0.55) return true;
+        // Winding tunnels where two fields cross zero
+        return Math.abs(noise.noise(x / 48.0, y / 24.0, z / 48.0 + 512.0)) < 0.06
+            && Math.abs(noise.noise(x / 48.0 + 512.0, y / 24.0, z / 48.0)) < 0.12;
+    }
+
+    private Material stone(int x, int y, int z, int surface) {
+        if (y == MIN_HEIGHT) return Material.BEDROCK;
+        if (y > surface - 4) return y == surface ? Material.GRASS_BLOCK : Material.DIRT;
+        final double blob = noise.noise(x / 12.0, y / 12.0, z / 12.0 + 1024.0);
+        if (blob > 0.7) return Material.GRAVEL;
+        if (blob > 0.5) return Material.ANDESITE;
+        if (blob < -0.7) return Material.DIORITE;
+        if (blob < -0.5) return Material.GRANITE;
+        final double ore = noise.noise(x / 3.0, y / 3.0, z / 3.0 + 2048.0);
+        if (ore > 0.85) return y < 0 ? Material.DEEPSLATE_IRON_ORE : Material.IRON_ORE;
+        if (ore < -0.85) return y < 0 ? Material.DEEPSLATE_COAL_ORE : Material.COAL_ORE;
+        if (y < 0) return y < -16 || blob > 0.2 ? Material.DEEPSLATE : Material.TUFF;
+        return Material.STONE;
+    }
+}
@@ -0,0 +1,69 @@
+package com.cavetale.caves;
+
+import org.bukkit.util.noise.SimplexNoiseGenerator;
+
+/**
+ * Simplex noise which can also evaluate many points at once.  Any
+ * point comes out exactly as SimplexNoiseGenerator has it for the
+ * same seed, so worlds keep their look.
+ *
+ * Batches run on the Vector API if the server was started with
+ * --add-modules jdk.incubator.vector, and point by point otherwise.
+ */
+final class BatchNoise extends SimplexNoiseGenerator {
+    static final boolean VECTOR_AVAILABLE = ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent();
+    private final boolean vector;
+
+    /**
+     * @param vector true to use the Vector API if available
+     */
+    BatchNoise(final long seed, final boolean vector) {
+        super(seed);
+        this.vector = vector && VECTOR_AVAILABLE;
+    }
+
+    /**
+     * Tell if batches run on the Vector API.
+     */
+    public boolean isVector() {
+        return vector;
+    }
+
+    /**
+     * Evaluate out[i] = noise(xs[i], ys[i], zs[i]) for all i below
+     * count.
+     */
+    public void noise(double[] xs, double[] ys, double[] zs, double[] out, int count) {
+        final int done = vector
+            ? VectorNoise.noise(this, xs, ys, zs, out, count)
+            : 0;
+        for (int i = done; i < count; i += 1) {
+            out[i] = noise(xs[i], ys[i], zs[i]);
+        }
+    }
+
+    // The kernel needs these, which are only visible to subclasses
+
+    int[] getPermutation() {
+        return perm;
+    }
+
+    double getOffsetX() {
+        return offsetX;
+    }
+
+    double getOffsetY() {
+        return offsetY;
+    }
+
+    double getOffsetZ() {
+        return offsetZ;
+    }
+
+    /**
+     * Component of one of the 12 gradients, 0 to 2 for x, y or z.
+     */
+    static double getGradient(int index, int axis) {
+        return grad3[index][axis];
+    }
+}
@@ -0,0 +1,63 @@
+package com.cavetale.caves;
+
+import org.bukkit.block.Biome;
+
+/**
+ * Biome types of one chunk, sampled once per 4x4x4 cell, which is
+ * the resolution the server stores biomes in.
+ */
+final class BiomeGrid {
+    private final int originX;
+    private final int originZ;
+    private final int minHeight;
+    // Type by cell, or null if unmapped
+    private final Biomes.Type[] cells;
+    private boolean decorated;
+
+    private BiomeGrid(final ChunkView view) {
+        this.originX = view.getChunkX() << 4;
+        this.originZ = view.getChunkZ() << 4;
+        this.minHeight = view.getMinHeight();
+        this.cells = new Biomes.Type[((view.getMaxHeight() - minHeight + 3) >> 2) << 4];
+    }
+
+    /**
+     * Sample the center chunk of the view.  Safe to call off the
+     * main thread.
+     */
+    static BiomeGrid sample(ChunkView view, Biomes biomes) {
+        BiomeGrid grid = new BiomeGrid(view);
+        Biome lastBiome = null;
+        Biomes.Type lastType = null;
+        for (int i = 0; i < grid.cells.length; i += 1) {
+            final Biome biome = view.getBiome(grid.originX + ((i & 3) << 2),
+                                              grid.minHeight + ((i >> 4) << 2),
+                                              grid.originZ + (((i >> 2) & 3) << 2));
+            // Neighboring cells mostly share their biome
+            if (biome != lastBiome) {
+                lastBiome = biome;
+                lastType = biomes.of(biome);
+            }
+            grid.cells[i] = lastType;
+            if (lastType != null && lastType != Biomes.Type.CAVES) {
+                grid.decorated = true;
+            }
+        }
+        return grid;
+    }
+
+    /**
+     * Get the type at a position in the chunk.
+     */
+    public Biomes.Type get(int x, int y, int z) {
+        return cells[((y - minHeight) >> 2) << 4 | ((z - originZ) >> 2) << 2 | ((x - originX) >> 2)];
+    }
+
+    /**
+     * Tell if any cell has a type other than CAVES.  If not, there is
+     * nothing to decorate in the chunk.
+     */
+    public boolean isDecorated() {
+        return decorated;
+    }
+}
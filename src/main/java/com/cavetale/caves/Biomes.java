@@ -1,12 +1,15 @@
 package com.cavetale.caves;
 
+import io.papermc.paper.registry.RegistryAccess;
+import io.papermc.paper.registry.RegistryKey;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.EnumMap;
-import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
 import java.util.logging.Logger;
@@ -16,11 +19,17 @@ import lombok.Setter;
 import org.bukkit.block.Biome;
 import org.bukkit.block.Block;
 
+/**
+ * Map biomes to types by keywords in their key, for every biome in
+ * the registry, datapack biomes included.  Each biome gets a dense
+ * id, and types are looked up by id.
+ */
 @Getter
 @RequiredArgsConstructor
 final class Biomes {
     private final Logger logger;
-    private final Map<Biome, Type> biomes = new HashMap<>();
+    private final Map<Biome, Integer> ids = new IdentityHashMap<>();
+    private Type[] table = new Type[0];
     private final Map<Type, Set<Biome>> types = new EnumMap<>(Type.class);
     @Setter private boolean reportDuplicateBiomes = false;
 
@@ -53,34 +62,51 @@ final class Biomes {
     }
 
     public void load() {
-        for (Biome biome : Biome.values()) {
+        List<Type> list = new ArrayList<>();
+        for (Biome biome : RegistryAccess.registryAccess().getRegistry(RegistryKey.BIOME)) {
+            final int id = list.size();
+            ids.put(biome, id);
+            list.add(null);
+            final String name = biome.getKey().getKey().toUpperCase(Locale.ROOT);
             for (Type type : Type.values()) {
-                String name = biome.name();
                 for (String keyword : type.keywords) {
                     if (name.contains(keyword)) {
-                        Type exist = biomes.get(biome);
+                        Type exist = list.get(id);
                         if (reportDuplicateBiomes && exist != null && exist != type) {
-                            logger.info("Duplicate: " + biome + ": "
-                                        + biomes.get(biome) + ", " + type);
+                            logger.info("Duplicate: " + biome.getKey() + ": "
+                                        + exist + ", " + type);
                             continue;
                         }
-                        biomes.put(biome, type);
+                        list.set(id, type);
                         types.computeIfAbsent(type, t -> new HashSet<>()).add(biome);
                     }
                 }
             }
-            if (!biomes.containsKey(biome)) {
-                logger.warning("No matching biome: " + biome);
+            if (list.get(id) == null) {
+                logger.warning("No matching biome: " + biome.getKey());
             }
         }
+        table = list.toArray(new Type[0]);
+    }
+
+    /**
+     * Get the dense id of a biome, or -1 if it is not registered.
+     */
+    public int idOf(Biome biome) {
+        Integer id = ids.get(biome);
+        return id != null ? id : -1;
+    }
+
+    public Type of(int id) {
+        return id >= 0 && id < table.length ? table[id] : null;
     }
 
     public Type of(Biome biome) {
-        return biomes.get(biome);
+        return of(idOf(biome));
     }
 
     public Type of(Block block) {
-        return biomes.get(block.getBiome());
+        return of(block.getBiome());
     }
 
     public static void test() {
@@ -0,0 +1,66 @@
+package com.cavetale.caves;
+
+import java.util.SplittableRandom;
+
+/**
+ * Randomness without state: every number is a hash of the world
+ * seed, a block position and what it is for.  A block gets the same
+ * numbers no matter which chunk, thread or order decorates it, so
+ * output is reproducible bit for bit and work can be split freely.
+ */
+final class BlockRandom {
+    private static final long X = 0x9E3779B97F4A7C15L;
+    private static final long Y = 0xC2B2AE3D27D4EB4FL;
+    private static final long Z = 0x165667B19E3779F9L;
+    private final long seed;
+
+    /**
+     * What a number is used for.  Each purpose draws from its own
+     * stream, so adding a draw never changes the others.
+     */
+    enum Purpose {
+        ORE_ORIGIN,
+        ORE_SIZE,
+        VEIN,
+        ICICLE,
+        VARIANT,
+        CACTUS,
+        TORCH_FACE,
+        SLIME;
+
+        private final long salt = mix((long) (ordinal() + 1) * X);
+    }
+
+    BlockRandom(final long seed) {
+        this.seed = mix(seed);
+    }
+
+    /**
+     * Stafford's variant 13 of the MurmurHash3 finalizer.
+     */
+    private static long mix(long h) {
+        h = (h ^ (h >>> 30)) * 0xBF58476D1CE4E5B9L;
+        h = (h ^ (h >>> 27)) * 0x94D049BB133111EBL;
+        return h ^ (h >>> 31);
+    }
+
+    public long hash(int x, int y, int z, Purpose purpose) {
+        final long h = mix(seed ^ purpose.salt ^ (long) x * X);
+        return mix(h ^ (long) y * Y ^ (long) z * Z);
+    }
+
+    /**
+     * A number from 0 (inclusive) to bound (exclusive).
+     */
+    public int nextInt(int x, int y, int z, Purpose purpose, int bound) {
+        return (int) (((hash(x, y, z, purpose) >>> 32) * (long) bound) >>> 32);
+    }
+
+    /**
+     * A generator for a whole sequence of numbers which all belong
+     * to the block, such as the shape of a vein.
+     */
+    public SplittableRandom at(int x, int y, int z, Purpose purpose) {
+        return new SplittableRandom(hash(x, y, z, purpose));
+    }
+}
@@ -1,10 +1,9 @@
 package com.cavetale.caves;
 
 import java.util.Random;
-import java.util.function.Function;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 import org.bukkit.Axis;
 import org.bukkit.Material;
-import org.bukkit.block.Block;
 import org.bukkit.block.BlockFace;
 import org.bukkit.block.data.Bisected;
 import org.bukkit.block.data.BlockData;
@@ -15,116 +14,175 @@ import org.bukkit.block.data.Waterlogged;
 import org.bukkit.block.data.type.Lantern;
 import org.bukkit.block.data.type.Leaves;
 
+/**
+ * Block data helpers.  All block data returned by this class is
+ * interned: it is created lazily once per material and variant and
+ * then shared between all callers and threads, so it must never be
+ * modified.
+ */
 public final class Blocks {
+    private static final int DEFAULT = 0;
+    private static final int ORIENTED = 1; // + Axis
+    private static final int DIRECT = 4; // + face index
+    private static final int FACING = 10; // + face index
+    private static final int LEAVES = 16;
+    private static final int UPPER = 17;
+    private static final int LOWER = 18;
+    private static final int WATERLOGGED = 19;
+    private static final int LANTERN = 20; // + hanging
+    private static final int VARIANTS = 22;
+    private static final Axis[] AXES = Axis.values();
+    private static final BlockFace[] FACES = {
+        BlockFace.NORTH,
+        BlockFace.EAST,
+        BlockFace.SOUTH,
+        BlockFace.WEST,
+        BlockFace.UP,
+        BlockFace.DOWN,
+    };
+    private static final AtomicReferenceArray<BlockData> PALETTE
+        = new AtomicReferenceArray<>(Material.values().length * VARIANTS);
+
     private Blocks() { }
 
+    /**
+     * Default state.
+     */
+    public static BlockData of(Material mat) {
+        return intern(mat, DEFAULT);
+    }
+
     /**
      * Orient if possible.
      */
     public static BlockData oriented(Material mat, Axis axis) {
-        BlockData data = mat.createBlockData();
-        if (data instanceof Orientable) {
-            ((Orientable) data).setAxis(axis);
-        }
-        return data;
+        return intern(mat, ORIENTED + axis.ordinal());
     }
 
     public static BlockData direct(Material mat, BlockFace face) {
-        BlockData data = mat.createBlockData();
-        if (data instanceof Directional) {
-            ((Directional) data).setFacing(face);
-        }
-        return data;
+        final int index = faceIndex(face);
+        return index < 0
+            ? create(mat, DIRECT, face)
+            : intern(mat, DIRECT + index);
     }
 
     public static BlockData facing(Material mat, BlockFace face) {
-        BlockData data = mat.createBlockData();
-        if (data instanceof MultipleFacing) {
-            ((MultipleFacing) data).setFace(face, true);
-        }
-        return data;
+        final int index = faceIndex(face);
+        return index < 0
+            ? create(mat, FACING, face)
+            : intern(mat, FACING + index);
     }
 
     public static BlockData leaves(Material mat) {
-        BlockData data = mat.createBlockData();
-        if (data instanceof Leaves) {
-            ((Leaves) data).setDistance(1);
-        }
-        return data;
+        return intern(mat, LEAVES);
     }
 
     public static BlockData upper(Material mat) {
-        BlockData data = mat.createBlockData();
-        if (data instanceof Bisected) {
-            ((Bisected) data).setHalf(Bisected.Half.TOP);
-        }
-        return data;
+        return intern(mat, UPPER);
     }
 
     public static BlockData lower(Material mat) {
-        BlockData data = mat.createBlockData();
-        if (data instanceof Bisected) {
-            ((Bisected) data).setHalf(Bisected.Half.BOTTOM);
-        }
-        return data;
+        return intern(mat, LOWER);
     }
 
     public static BlockData waterlogged(Material mat) {
-        BlockData data = mat.createBlockData();
-        if (data instanceof Waterlogged) {
-            ((Waterlogged) data).setWaterlogged(true);
-        }
-        return data;
+        return intern(mat, WATERLOGGED);
     }
 
     public static BlockData hangingLantern(boolean hanging) {
-        BlockData data = Material.LANTERN.createBlockData();
-        ((Lantern) data).setHanging(true);
-        return data;
+        return intern(Material.LANTERN, LANTERN + (hanging ? 1 : 0));
     }
 
-    public static <T> T randomArray(T[] ls, Random random) {
-        return ls[random.nextInt(ls.length)];
+    private static int faceIndex(BlockFace face) {
+        for (int i = 0; i < FACES.length; i += 1) {
+            if (FACES[i] == face) return i;
+        }
+        return -1;
     }
 
-    public static void set(Block block, Material material) {
-        block.setType(material, false);
+    private static BlockData intern(Material mat, int variant) {
+        final int index = mat.ordinal() * VARIANTS + variant;
+        BlockData result = PALETTE.get(index);
+        if (result != null) return result;
+        final BlockFace face = variant >= DIRECT && variant < LEAVES
+            ? FACES[(variant - DIRECT) % FACES.length]
+            : null;
+        result = create(mat, variant, face);
+        // Whoever comes first wins, so there is only one instance
+        final BlockData witness = PALETTE.compareAndExchange(index, null, result);
+        return witness != null ? witness : result;
     }
 
-    public static void set(Block block, BlockData data) {
-        block.setBlockData(data, false);
+    private static BlockData create(Material mat, int variant, BlockFace face) {
+        BlockData data = mat.createBlockData();
+        if (variant >= ORIENTED && variant < DIRECT) {
+            if (data instanceof Orientable orientable) {
+                orientable.setAxis(AXES[variant - ORIENTED]);
+            }
+        } else if (variant >= DIRECT && variant < FACING) {
+            if (data instanceof Directional directional) {
+                directional.setFacing(face);
+            }
+        } else if (variant >= FACING && variant < LEAVES) {
+            if (data instanceof MultipleFacing multipleFacing) {
+                multipleFacing.setFace(face, true);
+            }
+        } else if (variant == LEAVES) {
+            if (data instanceof Leaves leaves) {
+                leaves.setDistance(1);
+            }
+        } else if (variant == UPPER || variant == LOWER) {
+            if (data instanceof Bisected bisected) {
+                bisected.setHalf(variant == UPPER ? Bisected.Half.TOP : Bisected.Half.BOTTOM);
+            }
+        } else if (variant == WATERLOGGED) {
+            if (data instanceof Waterlogged waterlogged) {
+                waterlogged.setWaterlogged(true);
+            }
+        } else if (variant >= LANTERN) {
+            if (data instanceof Lantern lantern) {
+                lantern.setHanging(variant == LANTERN + 1);
+            }
+        }
+        return data;
     }
 
-    public static void set(Block block, int x, int y, int z, Material material) {
-        block.getRelative(x, y, z).setType(material, false);
+    public static <T> T randomArray(T[] ls, Random random) {
+        return ls[random.nextInt(ls.length)];
     }
 
-    public static void set(Block block, int x, int y, int z, BlockData data) {
-        block.getRelative(x, y, z).setBlockData(data, false);
+    /**
+     * Function of a block position.
+     */
+    @FunctionalInterface
+    interface PositionFunction<T> {
+        T apply(int x, int y, int z);
     }
 
-    public static boolean makeRaftersBelow(Block block, int interval, int x, int z,
-                                           Function<Block, Material> fun) {
-        int ix = block.getX() % interval;
+    static boolean makeRaftersBelow(Voxels view, int bx, int by, int bz,
+                                    int interval, int x, int z,
+                                    PositionFunction<Material> fun) {
+        int ix = bx % interval;
         if (ix < 0) ix += interval;
-        int iz = block.getZ() % interval;
+        int iz = bz % interval;
         if (iz < 0) iz += interval;
         boolean rafterX = ix == x;
         boolean rafterZ = iz == z;
-        Block pillar = block.getRelative(0, -1, 0);
+        int py = by - 1;
         if (rafterX && rafterZ) {
-            while (pillar.isEmpty() || pillar.isLiquid()) {
-                Material material = fun.apply(pillar);
+            while (py >= view.getMinHeight()
+                   && (view.isEmpty(bx, py, bz) || view.isLiquid(bx, py, bz))) {
+                Material material = fun.apply(bx, py, bz);
                 BlockData data = oriented(material, Axis.Y);
-                set(pillar, data);
-                pillar = pillar.getRelative(0, -1, 0);
+                view.set(bx, py, bz, data);
+                py -= 1;
             }
             return true;
         } else if (rafterX) {
-            set(pillar, oriented(fun.apply(pillar), Axis.Z));
+            view.set(bx, py, bz, oriented(fun.apply(bx, py, bz), Axis.Z));
             return true;
         } else if (rafterZ) {
-            set(pillar, oriented(fun.apply(pillar), Axis.X));
+            view.set(bx, py, bz, oriented(fun.apply(bx, py, bz), Axis.X));
             return true;
         } else {
             return false;
@@ -0,0 +1,168 @@
+package com.cavetale.caves;
+
+import java.util.ArrayDeque;
+import java.util.BitSet;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import org.bukkit.Chunk;
+import org.bukkit.World;
+import org.bukkit.command.CommandSender;
+
+/**
+ * Decorate many chunks, a few per tick.  See BulkScheduler.
+ */
+class BulkJob {
+    protected final String name;
+    protected final CommandSender sender;
+    protected final World world;
+    protected final Biomes.Type forcedBiome;
+    // Chunk coordinates, x in the lower and z in the upper half
+    protected final long[] chunks;
+    // Load chunks which were never generated, or skip them
+    protected boolean generate = true;
+    // Indexes of the chunks which are done, failed or skipped
+    protected final BitSet completed;
+    // Index of the next chunk to load
+    protected int next;
+    protected int loading;
+    // Loaded chunks, holding a ticket
+    protected final Queue<Loaded> ready = new ArrayDeque<>();
+    // Chunks being planned by the pool, and the finished plans
+    protected int planning;
+    protected final Queue<Planned> planned = new ConcurrentLinkedQueue<>();
+    protected int done;
+    protected int failed;
+    protected int skipped;
+    // Chunks skipped because the ledger has them
+    protected int decorated;
+    // Chunks completed before this run, see resume
+    protected int resumed;
+    protected int writes;
+    protected int noops;
+    protected int written;
+    // Nanoseconds spent planning on the pool, and on the main thread
+    protected long planTime;
+    protected long mainTime;
+    protected final long startTime = System.nanoTime();
+    protected long lastReport = startTime;
+    protected boolean cancelled;
+
+    protected record Loaded(int index, Chunk chunk) { }
+
+    /**
+     * A chunk analyzed and decorated by the pool, ready to apply.
+     * @param error what went wrong, or null
+     */
+    protected record Planned(int index, Chunk chunk, ChunkJob result, long time, Throwable error) { }
+
+    BulkJob(final String name, final CommandSender sender, final World world,
+            final Biomes.Type forcedBiome, final long[] chunks) {
+        this.name = name;
+        this.sender = sender;
+        this.world = world;
+        this.forcedBiome = forcedBiome;
+        this.chunks = chunks;
+        this.completed = new BitSet(chunks.length);
+    }
+
+    static long chunkKey(int x, int z) {
+        return ((long) z << 32) | (x & 0xFFFFFFFFL);
+    }
+
+    static int chunkX(long key) {
+        return (int) key;
+    }
+
+    static int chunkZ(long key) {
+        return (int) (key >> 32);
+    }
+
+    /**
+     * All chunks within the radius around the center, row by row.
+     */
+    static long[] square(int centerX, int centerZ, int radius) {
+        final int size = 2 * radius + 1;
+        long[] result = new long[size * size];
+        int i = 0;
+        for (int z = centerZ - radius; z <= centerZ + radius; z += 1) {
+            for (int x = centerX - radius; x <= centerX + radius; x += 1) {
+                result[i++] = chunkKey(x, z);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Mark chunks as completed in an earlier run.
+     */
+    protected void resume(BitSet previous) {
+        completed.or(previous);
+        resumed = completed.cardinality();
+        next = completed.nextClearBit(0);
+    }
+
+    /**
+     * Get the index of the next chunk to load, or -1.
+     */
+    protected int nextIndex() {
+        if (next >= chunks.length) return -1;
+        final int result = next;
+        next = completed.nextClearBit(next + 1);
+        return result;
+    }
+
+    protected void complete(int index) {
+        completed.set(index);
+    }
+
+    public int getTotal() {
+        return chunks.length;
+    }
+
+    public int getCompleted() {
+        return resumed + done + failed + skipped + decorated;
+    }
+
+    public boolean isDone() {
+        return getCompleted() >= chunks.length;
+    }
+
+    /**
+     * Chunks per second in this run.
+     */
+    public double getThroughput() {
+        final double seconds = (double) (System.nanoTime() - startTime) / 1_000_000_000.0;
+        return seconds > 0.0 ? (double) (done + failed + skipped + decorated) / seconds : 0.0;
+    }
+
+    /**
+     * Decorating time over the time this run took, roughly how many
+     * chunks were worked on at once.
+     */
+    public double getSpeedup() {
+        final long elapsed = System.nanoTime() - startTime;
+        return elapsed > 0 ? (double) (planTime + mainTime) / (double) elapsed : 0.0;
+    }
+
+    public String getProgress() {
+        final double throughput = getThroughput();
+        String result = String.format("%s: %d/%d chunks, %.1f chunks/s",
+                                      name, getCompleted(), chunks.length, throughput);
+        if (throughput > 0.0 && !isDone()) {
+            final long eta = (long) ((chunks.length - getCompleted()) / throughput);
+            result += String.format(", ETA %d:%02d:%02d", eta / 3600, (eta / 60) % 60, eta % 60);
+        }
+        return result;
+    }
+
+    /**
+     * Save the progress, if this job can be resumed.  Called
+     * periodically and when the plugin is disabled.
+     */
+    protected void save() { }
+
+    /**
+     * Forget the saved progress, once finished or cancelled.
+     */
+    protected void discard() { }
+}
@@ -0,0 +1,370 @@
+package com.cavetale.caves;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+import java.util.logging.Level;
+import org.bukkit.Chunk;
+import org.bukkit.scheduler.BukkitTask;
+
+/**
+ * Run bulk jobs on the main thread within a budget of milliseconds
+ * per tick.  Chunks are loaded asynchronously, a few at a time per
+ * job, and only enter the queue once loaded.  Jobs take turns, one
+ * chunk each, until the budget is spent.
+ *
+ * Chunks which the ledger has as decorated or in flight are skipped
+ * without loading them, and again once loaded.
+ *
+ * With a parallelism above 1, the main thread only captures and
+ * applies chunks.  Analysis and planning run on a ForkJoin pool,
+ * up to two chunks per thread and job at once.
+ *
+ * Loaded chunks next to a chunk in flight wait in the queue until
+ * it is applied, since both would write the blocks along their
+ * border.  Others may go first.
+ */
+final class BulkScheduler {
+    private static final long REPORT_INTERVAL = 5_000_000_000L;
+    private final CavesPlugin plugin;
+    private final long budget;
+    private final int maxLoading;
+    private final int parallelism;
+    private final ForkJoinPool pool;
+    private final List<BulkJob> jobs = new ArrayList<>();
+    private BukkitTask task;
+
+    /**
+     * @param budgetMillis the time per tick
+     * @param maxLoading the chunks loading at once per job
+     * @param parallelism the threads planning chunks, 0 for one per
+     *   processor, 1 to do everything on the main thread
+     */
+    BulkScheduler(final CavesPlugin plugin, final int budgetMillis, final int maxLoading, final int parallelism) {
+        this.plugin = plugin;
+        this.budget = Math.max(1, budgetMillis) * 1_000_000L;
+        this.maxLoading = Math.max(1, maxLoading);
+        this.parallelism = parallelism > 0
+            ? parallelism
+            : Runtime.getRuntime().availableProcessors();
+        if (this.parallelism > 1) {
+            final AtomicInteger threadId = new AtomicInteger();
+            this.pool = new ForkJoinPool(this.parallelism, forkJoinPool -> {
+                    ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory
+                        .newThread(forkJoinPool);
+                    thread.setName("Caves-Bulk-" + threadId.incrementAndGet());
+                    return thread;
+                }, null, false);
+        } else {
+            this.pool = null;
+        }
+    }
+
+    public void submit(BulkJob job) {
+        jobs.add(job);
+        job.sender.sendMessage("Queued " + job.getProgress());
+        if (task == null) {
+            task = plugin.getServer().getScheduler().runTaskTimer(plugin, this::tick, 1L, 1L);
+        }
+    }
+
+    public List<BulkJob> getJobs() {
+        return List.copyOf(jobs);
+    }
+
+    /**
+     * Cancel all jobs matching the predicate.
+     * @return the number of jobs cancelled
+     */
+    public int cancel(Predicate<BulkJob> predicate) {
+        int count = 0;
+        for (BulkJob job : jobs) {
+            if (job.cancelled || !predicate.test(job)) continue;
+            job.cancelled = true;
+            count += 1;
+        }
+        return count;
+    }
+
+    /**
+     * Stop all jobs and let go of their chunks.  Jobs which can be
+     * resumed save their progress.
+     */
+    public void shutdown() {
+        if (pool != null) pool.shutdownNow();
+        for (BulkJob job : jobs) {
+            job.cancelled = true;
+            release(job);
+            job.save();
+        }
+        jobs.clear();
+        if (task != null) {
+            task.cancel();
+            task = null;
+        }
+    }
+
+    private void tick() {
+        final long deadline = System.nanoTime() + budget;
+        for (BulkJob job : jobs) {
+            if (!job.cancelled) load(job);
+        }
+        boolean busy = true;
+        while (busy && System.nanoTime() < deadline) {
+            busy = false;
+            for (BulkJob job : jobs) {
+                if (job.cancelled) continue;
+                if (pool != null) {
+                    busy |= step(job);
+                } else {
+                    BulkJob.Loaded loaded = pollReady(job);
+                    if (loaded == null) continue;
+                    busy = true;
+                    process(job, loaded);
+                }
+                if (System.nanoTime() >= deadline) break;
+            }
+        }
+        final long now = System.nanoTime();
+        for (Iterator<BulkJob> iter = jobs.iterator(); iter.hasNext();) {
+            BulkJob job = iter.next();
+            if (job.cancelled) {
+                release(job);
+                // Wait for the pool to hand back all chunks
+                if (job.planning > 0) continue;
+                iter.remove();
+                job.discard();
+                job.sender.sendMessage("Cancelled " + job.getProgress());
+            } else if (job.isDone()) {
+                iter.remove();
+                job.discard();
+                finish(job);
+            } else if (now - job.lastReport >= REPORT_INTERVAL) {
+                job.lastReport = now;
+                job.save();
+                job.sender.sendMessage(job.getProgress());
+            }
+        }
+        if (jobs.isEmpty()) {
+            task.cancel();
+            task = null;
+        }
+    }
+
+    private void load(BulkJob job) {
+        final ChunkLedger ledger = plugin.getLedger();
+        while (job.loading + job.ready.size() < maxLoading) {
+            final int index = job.nextIndex();
+            if (index < 0) break;
+            final int x = BulkJob.chunkX(job.chunks[index]);
+            final int z = BulkJob.chunkZ(job.chunks[index]);
+            if (ledger.isDecorated(job.world, x, z) || ledger.isInFlight(job.world, x, z)) {
+                job.decorated += 1;
+                job.complete(index);
+                continue;
+            }
+            job.loading += 1;
+            job.world.getChunkAtAsync(x, z, job.generate).whenComplete((chunk, throwable) -> {
+                    job.loading -= 1;
+                    if (throwable != null) {
+                        plugin.getLogger().log(Level.SEVERE, "Loading chunk " + x + "," + z, throwable);
+                        job.failed += 1;
+                        job.complete(index);
+                        return;
+                    }
+                    if (job.cancelled) return;
+                    if (chunk == null) {
+                        // Not generated
+                        job.skipped += 1;
+                        job.complete(index);
+                        return;
+                    }
+                    plugin.getTickets().add(job.world, x, z);
+                    job.ready.add(new BulkJob.Loaded(index, chunk));
+                });
+        }
+    }
+
+    private void process(BulkJob job, BulkJob.Loaded loaded) {
+        final Chunk chunk = loaded.chunk();
+        if (!begin(job, loaded)) return;
+        final long start = System.nanoTime();
+        boolean success = false;
+        try {
+            ChunkJob result = plugin.getCaveDecorator(job.world).transformChunk(chunk, job.forcedBiome);
+            count(job, result);
+            success = true;
+        } catch (RuntimeException re) {
+            plugin.getLogger().log(Level.SEVERE, "Decorating chunk " + chunk.getX() + "," + chunk.getZ(), re);
+            job.failed += 1;
+        }
+        job.mainTime += System.nanoTime() - start;
+        job.complete(loaded.index());
+        plugin.getLedger().finish(job.world, chunk.getX(), chunk.getZ(), success);
+        plugin.getTickets().remove(job.world, chunk.getX(), chunk.getZ());
+        plugin.getPipeline().retryDeferred(job.world, chunk.getX(), chunk.getZ());
+    }
+
+    /**
+     * Enter a loaded chunk into the ledger, or else skip it because
+     * it was decorated while loading.
+     * @return true if the chunk may be decorated
+     */
+    private boolean begin(BulkJob job, BulkJob.Loaded loaded) {
+        final Chunk chunk = loaded.chunk();
+        if (plugin.getLedger().begin(job.world, chunk.getX(), chunk.getZ())) return true;
+        job.decorated += 1;
+        job.complete(loaded.index());
+        plugin.getTickets().remove(job.world, chunk.getX(), chunk.getZ());
+        return false;
+    }
+
+    private void count(BulkJob job, ChunkJob result) {
+        job.writes += result.view.getEdits().getWrites();
+        job.noops += result.view.getEdits().getNoops();
+        job.written += result.blocksWritten;
+        job.done += 1;
+    }
+
+    /**
+     * Apply one planned chunk, or else send one loaded chunk to the
+     * pool.
+     * @return true if there was anything to do
+     */
+    private boolean step(BulkJob job) {
+        BulkJob.Planned planned = job.planned.poll();
+        if (planned != null) {
+            job.planning -= 1;
+            apply(job, planned);
+            return true;
+        }
+        if (job.planning >= 2 * parallelism) return false;
+        BulkJob.Loaded loaded = pollReady(job);
+        if (loaded == null) return false;
+        plan(job, loaded);
+        return true;
+    }
+
+    /**
+     * Take the first loaded chunk which is not next to a chunk in
+     * flight.  A chunk which is itself in flight is taken, so begin
+     * can skip it.
+     * @return the chunk, or null if there is none
+     */
+    private BulkJob.Loaded pollReady(BulkJob job) {
+        final ChunkLedger ledger = plugin.getLedger();
+        for (Iterator<BulkJob.Loaded> iter = job.ready.iterator(); iter.hasNext();) {
+            BulkJob.Loaded loaded = iter.next();
+            final int x = loaded.chunk().getX();
+            final int z = loaded.chunk().getZ();
+            if (ledger.isNearInFlight(job.world, x, z) && !ledger.isInFlight(job.world, x, z)) continue;
+            iter.remove();
+            return loaded;
+        }
+        return null;
+    }
+
+    /**
+     * Capture the chunk here and plan it on the pool.  The captured
+     * neighbors hold a ticket until the plan is applied.
+     */
+    private void plan(BulkJob job, BulkJob.Loaded loaded) {
+        final Chunk chunk = loaded.chunk();
+        if (!begin(job, loaded)) return;
+        final long start = System.nanoTime();
+        final CaveDecorator decorator = plugin.getCaveDecorator(job.world);
+        final ChunkJob chunkJob;
+        try {
+            chunkJob = decorator.capture(chunk, job.forcedBiome);
+        } catch (RuntimeException re) {
+            plugin.getLogger().log(Level.SEVERE, "Capturing chunk " + chunk.getX() + "," + chunk.getZ(), re);
+            job.failed += 1;
+            job.complete(loaded.index());
+            plugin.getLedger().finish(job.world, chunk.getX(), chunk.getZ(), false);
+            plugin.getTickets().remove(job.world, chunk.getX(), chunk.getZ());
+            return;
+        } finally {
+            job.mainTime += System.nanoTime() - start;
+        }
+        plugin.getTickets().add(chunkJob);
+        job.planning += 1;
+        pool.execute(() -> {
+                final long planStart = System.nanoTime();
+                Throwable error = null;
+                try {
+                    decorator.analyze(chunkJob);
+                    decorator.exclude(chunkJob);
+                    decorator.decorate(chunkJob);
+                } catch (RuntimeException re) {
+                    error = re;
+                }
+                job.planned.add(new BulkJob.Planned(loaded.index(), chunk, chunkJob,
+                                                    System.nanoTime() - planStart, error));
+            });
+    }
+
+    /**
+     * Write a planned chunk to the world, or let go of it if the job
+     * was cancelled.
+     */
+    private void apply(BulkJob job, BulkJob.Planned planned) {
+        final Chunk chunk = planned.chunk();
+        job.planTime += planned.time();
+        if (job.cancelled) {
+            plugin.getLedger().finish(job.world, chunk.getX(), chunk.getZ(), false);
+            plugin.getTickets().remove(planned.result());
+            plugin.getTickets().remove(job.world, chunk.getX(), chunk.getZ());
+            return;
+        }
+        boolean success = false;
+        if (planned.error() != null) {
+            plugin.getLogger().log(Level.SEVERE, "Decorating chunk " + chunk.getX() + "," + chunk.getZ(),
+                                   planned.error());
+            job.failed += 1;
+        } else {
+            final long start = System.nanoTime();
+            try {
+                plugin.getCaveDecorator(job.world).apply(planned.result());
+                count(job, planned.result());
+                success = true;
+            } catch (RuntimeException re) {
+                plugin.getLogger().log(Level.SEVERE, "Applying chunk " + chunk.getX() + "," + chunk.getZ(), re);
+                job.failed += 1;
+            }
+            job.mainTime += System.nanoTime() - start;
+        }
+        job.complete(planned.index());
+        plugin.getLedger().finish(job.world, chunk.getX(), chunk.getZ(), success);
+        plugin.getTickets().remove(planned.result());
+        plugin.getTickets().remove(job.world, chunk.getX(), chunk.getZ());
+        plugin.getPipeline().retryDeferred(job.world, chunk.getX(), chunk.getZ());
+    }
+
+    private void release(BulkJob job) {
+        for (BulkJob.Loaded loaded : job.ready) {
+            plugin.getTickets().remove(job.world, loaded.chunk().getX(), loaded.chunk().getZ());
+        }
+        job.ready.clear();
+        for (BulkJob.Planned planned = job.planned.poll(); planned != null; planned = job.planned.poll()) {
+            job.planning -= 1;
+            apply(job, planned);
+        }
+    }
+
+    private void finish(BulkJob job) {
+        job.sender.sendMessage("Finished " + job.getProgress()
+                               + (job.failed > 0 ? ", " + job.failed + " failed" : "")
+                               + (job.decorated > 0 ? ", " + job.decorated + " already decorated" : ""));
+        job.sender.sendMessage(job.written + " blocks written of " + job.writes + " writes, "
+                               + (job.writes - job.written - job.noops) + " overwritten, "
+                               + job.noops + " unchanged");
+        job.sender.sendMessage(String.format("%.1fs of decorating in %.1fs, %.1fx",
+                                             (double) (job.planTime + job.mainTime) / 1e9,
+                                             (double) (System.nanoTime() - job.startTime) / 1e9,
+                                             job.getSpeedup()));
+    }
+}
@@ -2,23 +2,16 @@ package com.cavetale.caves;
 
 import com.cavetale.core.structure.Structures;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
-import java.util.Random;
-import java.util.stream.Collectors;
-import lombok.Setter;
-import org.bukkit.Axis;
+import java.util.SplittableRandom;
+import java.util.function.Supplier;
 import org.bukkit.Chunk;
 import org.bukkit.Material;
-import org.bukkit.Tag;
 import org.bukkit.TreeType;
 import org.bukkit.World;
-import org.bukkit.block.Biome;
 import org.bukkit.block.Block;
 import org.bukkit.block.BlockFace;
-import org.bukkit.util.noise.SimplexNoiseGenerator;
-import static com.cavetale.caves.Blocks.set;
+import org.bukkit.block.data.BlockData;
 
 /**
  * Goal: Have 1 cave decoration for each Biomes.Type (some may share).
@@ -26,7 +19,16 @@ import static com.cavetale.caves.Blocks.set;
  */
 final class CaveDecorator {
     private final CavesPlugin plugin;
-    private final SimplexNoiseGenerator noiseGenerator;
+    private final BatchNoise noiseGenerator;
+    private final Biomes biomes;
+    private final MaterialTraits traits;
+    private final boolean noiseLattice;
+    private final NoiseField.ErrorStats noiseErrorStats;
+    private final boolean skyFlood;
+    private final int probeStride;
+    private final Metrics metrics;
+    private final BlockRandom random;
+    private final Supplier<ThemeTable> themes;
     private static final BlockFace[] FACING_NEIGHBORS = {
         BlockFace.UP,
         BlockFace.DOWN,
@@ -41,856 +43,912 @@ final class CaveDecorator {
         BlockFace.SOUTH,
         BlockFace.WEST
     };
-    @Setter private Biomes.Type forcedBiome = null; // debug
+
+    /**
+     * The tuning switches of a decorator, see config.yml.
+     * @param noiseLattice interpolate noise from a coarse lattice
+     * @param noiseVector batch the lattice on the Vector API
+     * @param skyFlood flood the open sky into the caves
+     * @param probeStride columns between probed ones, 0 for none
+     */
+    record Options(boolean noiseLattice, boolean noiseVector, boolean skyFlood, int probeStride) {
+        static final Options DEFAULTS = new Options(true, true, true, 4);
+
+        Options withNoiseLattice(boolean value) {
+            return new Options(value, noiseVector, skyFlood, probeStride);
+        }
+
+        Options withNoiseVector(boolean value) {
+            return new Options(noiseLattice, value, skyFlood, probeStride);
+        }
+
+        Options withSkyFlood(boolean value) {
+            return new Options(noiseLattice, noiseVector, value, probeStride);
+        }
+
+        Options withProbeStride(int value) {
+            return new Options(noiseLattice, noiseVector, skyFlood, value);
+        }
+    }
 
     protected CaveDecorator(final CavesPlugin plugin, final World world) {
+        this(plugin, world.getSeed(), plugin.getBiomes(), plugin.getMaterialTraits(),
+             plugin.getDecoratorOptions(), plugin.getNoiseErrorStats(), plugin.getMetrics(), plugin::getThemes);
+    }
+
+    /**
+     * Decorator with explicit settings.  Without a plugin, chunks
+     * can only be transformed directly, as in the benchmarks.
+     * @param noiseErrorStats where to record the noise error, or
+     *   null
+     */
+    CaveDecorator(final CavesPlugin plugin, final long seed, final Biomes biomes, final MaterialTraits traits,
+                  final Options options, final NoiseField.ErrorStats noiseErrorStats,
+                  final Metrics metrics, final Supplier<ThemeTable> themes) {
         this.plugin = plugin;
-        noiseGenerator = new SimplexNoiseGenerator(world.getSeed());
-    }
-
-    protected void transformChunk(Chunk chunk) {
-        World world = chunk.getWorld();
-        final int cx = chunk.getX();
-        final int cz = chunk.getZ();
-        // Block => revealed faces
-        Map<Block, Context> blocks = new HashMap<>();
-        List<Runnable> deferredActions = new ArrayList<>();
-        double dseed = noiseGenerator.noise(chunk.getX(), chunk.getZ());
-        int seed = (int) (dseed * (double) Integer.MAX_VALUE);
-        Random random = new Random(seed);
-        for (int z = 0; z < 16; z += 1) {
-            for (int x = 0; x < 16; x += 1) {
-                final int lo = world.getMinHeight();
-                final int hi = world.getHighestBlockYAt(cx * 16 + x,
-                                                        cz * 16 + z);
+        this.noiseGenerator = new BatchNoise(seed, options.noiseVector());
+        this.biomes = biomes;
+        this.traits = traits;
+        this.noiseLattice = options.noiseLattice();
+        this.noiseErrorStats = noiseErrorStats;
+        this.skyFlood = options.skyFlood();
+        this.probeStride = options.probeStride();
+        this.metrics = metrics;
+        this.random = new BlockRandom(seed);
+        this.themes = themes;
+    }
+
+    /**
+     * Run all stages right here.  Must be called on the main thread.
+     * @param forcedBiome the type of all surfaces, or null to go by
+     *   biome (debug)
+     */
+    protected ChunkJob transformChunk(Chunk chunk, Biomes.Type forcedBiome) {
+        ChunkJob job = capture(chunk, forcedBiome);
+        analyze(job);
+        exclude(job);
+        excludeCore(job);
+        decorate(job);
+        apply(job);
+        return job;
+    }
+
+    /**
+     * Snapshot the chunk with its heightmaps, and its structures.
+     * Must be called on the main thread.
+     */
+    protected ChunkJob capture(Chunk chunk, Biomes.Type forcedBiome) {
+        ChunkView view = ChunkView.capture(chunk);
+        NoiseField noise = new NoiseField(noiseGenerator, view.getChunkX(), view.getChunkZ(), view,
+                                          noiseLattice, noiseErrorStats);
+        return new ChunkJob(view, StructureMask.capture(chunk), forcedBiome, noise);
+    }
+
+    /**
+     * Prepare a chunk within voxels without a world, such as a
+     * VoxelArray.  The heightmap is computed from the blocks, there
+     * are no structures or biomes, and decorate writes right into
+     * the voxels.
+     * @param forcedBiome the type of all surfaces
+     */
+    protected ChunkJob prepare(Voxels voxels, int chunkX, int chunkZ, Biomes.Type forcedBiome) {
+        if (forcedBiome == null) {
+            throw new IllegalArgumentException("Offline chunks need a forced biome");
+        }
+        NoiseField noise = new NoiseField(noiseGenerator, chunkX, chunkZ, voxels, noiseLattice, noiseErrorStats);
+        return new ChunkJob(chunkX, chunkZ, voxels, null, SkyMap.scan(voxels, chunkX, chunkZ),
+                            StructureMask.EMPTY, forcedBiome, noise);
+    }
+
+    /**
+     * Find exposed surfaces, classify them, place ores and
+     * determine the biome type of each surface.  Safe to call off
+     * the main thread.
+     */
+    protected void analyze(ChunkJob job) {
+        final Voxels view = job.voxels;
+        final SurfaceIndex surfaces = job.surfaces;
+        final int cx = job.chunkX;
+        final int cz = job.chunkZ;
+        job.context = new Context(job.features, random, job.noise);
+        final BiomeGrid biomeGrid = job.forcedBiome == null
+            ? BiomeGrid.sample(job.view, biomes)
+            : null;
+        if (biomeGrid != null && !biomeGrid.isDecorated()) return;
+        if (job.sky == null) job.sky = SkyMap.read(job.view);
+        final SkyMap sky = job.sky;
+        int top = view.getMinHeight();
+        for (int z = cz * 16; z < cz * 16 + 16; z += 1) {
+            for (int x = cx * 16; x < cx * 16 + 16; x += 1) {
+                top = Math.max(top, sky.getHeight(x, z));
+            }
+        }
+        SectionMask sections = null;
+        if (probeStride > 0) {
+            final long probeStart = System.nanoTime();
+            final boolean hit;
+            if (probeStride == 1) {
+                // Certain, and the scan needs the sections anyway
+                sections = SectionMask.compute(view, cx, cz, top, traits::isInside);
+                hit = sections.count(SectionMask.SCAN) > 0;
+            } else {
+                hit = CaveProbe.probe(view, sky, cx, cz, probeStride, traits::isEmpty,
+                                      m -> traits.canReplace(m) || traits.isInside(m));
+            }
+            metrics.record(Metrics.Phase.PROBE, System.nanoTime() - probeStart);
+            metrics.add(hit ? Metrics.Count.PROBE_HITS : Metrics.Count.PROBE_MISSES, null, 1);
+            if (!hit) return;
+        }
+        if (skyFlood) {
+            sky.flood((x, y, z) -> isInside(view, x, y, z));
+        }
+        final long scanStart = System.nanoTime();
+        long classifyTime = 0L;
+        final ColumnRuns runs = new ColumnRuns(cx, cz);
+        if (sections == null) sections = SectionMask.compute(view, cx, cz, top, traits::isInside);
+        for (int z = cz * 16; z < cz * 16 + 16; z += 1) {
+            for (int x = cx * 16; x < cx * 16 + 16; x += 1) {
+                final int lo = view.getMinHeight();
+                final int hi = sky.getHeight(x, z);
+                final int first = surfaces.size();
+                runs.begin(x, z);
                 BLOCK:
                 for (int y = lo; y < hi; y += 1) {
-                    Block block = chunk.getBlock(x, y, z);
-                    Context context = null;
-                    if (block.isEmpty()) continue;
-                    if (!canReplace(block)) continue;
+                    final byte section = sections.get(y);
+                    if (section != SectionMask.SCAN) {
+                        final int next = Math.min(hi, sections.next(y));
+                        if (section == SectionMask.INSIDE) runs.add(y, next);
+                        y = next - 1;
+                        continue;
+                    }
+                    final Material mat = view.getType(x, y, z);
+                    if (!traits.canReplace(mat)) {
+                        if (traits.isInside(mat)) runs.add(y);
+                        continue;
+                    }
+                    int faces = 0;
                     for (BlockFace face : FACING_NEIGHBORS) {
-                        Block nbor = block.getRelative(face);
-                        if (nbor.getLightFromSky() > 0) {
-                            context = null;
-                            blocks.remove(block);
+                        final int nx = x + face.getModX();
+                        final int ny = y + face.getModY();
+                        final int nz = z + face.getModZ();
+                        if (sky.isOpen(nx, ny, nz)) {
                             continue BLOCK;
                         }
-                        if (nbor.isEmpty()) {
-                            if (context == null) {
-                                context = new Context(deferredActions, random);
-                                blocks.put(block, context);
-                            }
-                            context.faces.add(face);
-                        } else if (isInside(nbor)) {
+                        final Material neighbor = view.getType(nx, ny, nz);
+                        if (traits.isEmpty(neighbor)) {
+                            faces |= SurfaceIndex.bit(face);
+                        } else if (traits.isInside(neighbor)) {
                             for (BlockFace face2 : FACING_NEIGHBORS) {
-                                if (nbor.getRelative(face2).isEmpty()) {
-                                    if (context == null) {
-                                        context = new Context(deferredActions, random);
-                                        blocks.put(block, context);
-                                    }
-                                    context.faces.add(face);
+                                if (traits.isEmpty(view.getType(nx + face2.getModX(),
+                                                                ny + face2.getModY(),
+                                                                nz + face2.getModZ()))) {
+                                    faces |= SurfaceIndex.bit(face);
                                 }
                             }
                         }
                     }
-                    if (context != null) {
-                        classify(block, context);
+                    if (faces != 0) {
+                        surfaces.add(x, y, z, faces);
                     }
                 }
+                runs.end(Math.max(lo, hi));
+                // The column is complete, so the height above each
+                // surface is known.
+                final long classifyStart = System.nanoTime();
+                for (int i = first; i < surfaces.size(); i += 1) {
+                    surfaces.setInfo(i, classify(view, runs, x, surfaces.getY(i), z, surfaces.getInfo(i)));
+                }
+                classifyTime += System.nanoTime() - classifyStart;
             }
         }
-        placeOres(blocks);
-        for (Map.Entry<Block, Context> entry : blocks.entrySet()) {
-            Block block = entry.getKey();
-            Biome biome = block.getBiome();
-            Biomes.Type biomeType = forcedBiome != null
-                ? forcedBiome
-                : plugin.getBiomes().of(biome);
-            if (biomeType == null || biomeType == Biomes.Type.CAVES) continue;
-            if (Structures.get().structurePartAt(block)) continue;
-            Context context = entry.getValue();
-            transform(block, context, biomeType);
-        }
-        for (Runnable run : deferredActions) run.run();
-    }
-
-    private boolean canReplace(Block block) {
-        switch (block.getType()) {
-        case STONE:
-        case ANDESITE: case DIORITE: case GRANITE:
-        case DIRT: case GRAVEL:
-        case COAL_ORE: case IRON_ORE:
-        case DEEPSLATE_COAL_ORE: case DEEPSLATE_IRON_ORE:
-        case DEEPSLATE:
-        case TUFF:
-            return true;
-        default:
-            return false;
-        }
-    }
-
-    private boolean isInside(Block block) {
-        if (block.isEmpty() || block.isLiquid()) return true;
-        Material mat = block.getType();
-        if (Tag.FENCES.isTagged(mat)) return true;
-        if (Tag.FLOWERS.isTagged(mat)) return true;
-        if (Tag.CROPS.isTagged(mat)) return true;
-        if (Tag.RAILS.isTagged(mat)) return true;
-        return false;
-    }
-
-    private void classify(Block block, Context context) {
-        // Figure out orientation and height
-        if (context.faces.contains(BlockFace.UP)) {
-            Block above = block.getRelative(0, 1, 0);
-            while (isInside(above)) {
-                context.height += 1;
-                if (above.getY() == 255) break;
-                above = above.getRelative(0, 1, 0);
+        final long oresStart = System.nanoTime();
+        metrics.record(Metrics.Phase.SCAN, oresStart - scanStart - classifyTime);
+        metrics.add(Metrics.Count.SECTIONS_SCANNED, null, sections.count(SectionMask.SCAN));
+        metrics.add(Metrics.Count.SECTIONS_CULLED, null,
+                    sections.count(SectionMask.SOLID) + sections.count(SectionMask.INSIDE));
+        metrics.record(Metrics.Phase.CLASSIFY, classifyTime);
+        final int[] veins = new int[Metrics.NO_TYPE + 1];
+        placeOres(view, surfaces, job.context, (x, y, z) -> typeAt(job, biomeGrid, x, y, z), veins);
+        metrics.record(Metrics.Phase.ORES, System.nanoTime() - oresStart);
+        metrics.add(Metrics.Count.VEINS, veins);
+        final int[] counts = new int[Metrics.NO_TYPE + 1];
+        for (int i = 0; i < surfaces.size(); i += 1) {
+            if (surfaces.isRemoved(i)) continue;
+            Biomes.Type biomeType = typeAt(job, biomeGrid, surfaces.getX(i), surfaces.getY(i), surfaces.getZ(i));
+            if (biomeType == null || biomeType == Biomes.Type.CAVES) {
+                surfaces.remove(i);
+            } else {
+                surfaces.setType(i, biomeType);
+                counts[biomeType.ordinal()] += 1;
             }
-            context.floor = context.height >= 2;
-        } else {
-            context.floor = false;
-        }
-        if (!context.floor && context.faces.contains(BlockFace.DOWN)) {
-            Block below = block.getRelative(0, -1, 0);
-            context.height = 0;
-            while (isInside(below)) {
-                context.height += 1;
-                if (below.getY() == 0) break;
-                below = below.getRelative(0, -1, 0);
+        }
+        metrics.add(Metrics.Count.SURFACES, counts);
+    }
+
+    private static Biomes.Type typeAt(ChunkJob job, BiomeGrid biomeGrid, int x, int y, int z) {
+        return job.forcedBiome != null
+            ? job.forcedBiome
+            : biomeGrid.get(x, y, z);
+    }
+
+    /**
+     * Drop all surfaces which are part of a structure.  Safe to call
+     * off the main thread.
+     */
+    protected void exclude(ChunkJob job) {
+        final StructureMask structures = job.structures;
+        if (structures.isEmpty()) return;
+        final SurfaceIndex surfaces = job.surfaces;
+        for (int i = 0; i < surfaces.size(); i += 1) {
+            if (surfaces.isRemoved(i)) continue;
+            if (structures.contains(surfaces.getX(i), surfaces.getY(i), surfaces.getZ(i))) {
+                surfaces.remove(i);
+            }
+        }
+    }
+
+    /**
+     * Drop all remaining surfaces which Core has as part of a
+     * structure, including custom ones the server does not know.
+     * Core only answers block by block, so each surface is asked.
+     * Chunks without surfaces left ask nothing.  Done once per job.
+     * Must be called on the main thread.
+     * @return true if any surface was dropped
+     */
+    protected boolean excludeCore(ChunkJob job) {
+        if (job.view == null || job.coreChecked) return false;
+        job.coreChecked = true;
+        final long start = System.nanoTime();
+        final World world = job.view.getWorld();
+        final SurfaceIndex surfaces = job.surfaces;
+        boolean result = false;
+        for (int i = 0; i < surfaces.size(); i += 1) {
+            if (surfaces.isRemoved(i)) continue;
+            Block block = world.getBlockAt(surfaces.getX(i), surfaces.getY(i), surfaces.getZ(i));
+            if (Structures.get().structurePartAt(block)) {
+                surfaces.remove(i);
+                result = true;
+            }
+        }
+        metrics.record(Metrics.Phase.STRUCTURES, System.nanoTime() - start);
+        return result;
+    }
+
+    /**
+     * Plan the theme of every remaining surface.  The whole chunk
+     * uses the same theme table, even if themes are reloaded
+     * meanwhile.  Safe to call off the main thread.
+     */
+    protected void decorate(ChunkJob job) {
+        final long start = System.nanoTime();
+        final SurfaceIndex surfaces = job.surfaces;
+        final Voxels voxels = job.voxels;
+        final ThemeTable table = themes.get();
+        final int[] writes = new int[Metrics.NO_TYPE + 1];
+        for (int i = 0; i < surfaces.size(); i += 1) {
+            if (surfaces.isRemoved(i)) continue;
+            final int before = voxels.getWrites();
+            final Biomes.Type type = surfaces.getType(i);
+            transform(voxels, job.context.load(surfaces, i), table);
+            writes[type.ordinal()] += voxels.getWrites() - before;
+        }
+        if (job.view != null) {
+            job.view.dropNoops();
+            if (plugin.getUndoJournal() != null) job.undo = UndoJournal.encode(job.view);
+        }
+        metrics.record(Metrics.Phase.THEMES, System.nanoTime() - start);
+        metrics.add(Metrics.Count.WRITES, writes);
+    }
+
+    /**
+     * Write the planned edits to the world, journal what they
+     * overwrote and queue the features.  Jobs planned on a worker
+     * ask Core here, and are planned again on the rare occasion
+     * that it drops a surface.  Must be called on the main thread.
+     */
+    protected void apply(ChunkJob job) {
+        if (excludeCore(job)) {
+            job.view.getEdits().clear();
+            job.features.clear();
+            decorate(job);
+        }
+        final long start = System.nanoTime();
+        if (job.view != null) job.blocksWritten = job.view.apply();
+        metrics.record(Metrics.Phase.APPLY, System.nanoTime() - start);
+        if (job.undo != null) {
+            plugin.getUndoJournal().append(job.view.getWorld(), job.chunkX, job.chunkZ, job.undo);
+        }
+        if (job.view != null && !job.features.isEmpty()) {
+            plugin.getFeatureQueue().submit(job.view.getWorld(), job.features);
+        }
+        metrics.chunkDone();
+    }
+
+    private boolean isInside(Voxels view, int x, int y, int z) {
+        return traits.isInside(view.getType(x, y, z));
+    }
+
+    /**
+     * Figure out orientation and height.  The column of the surface
+     * must have been recorded in the runs.
+     * @return the surface info
+     */
+    private int classify(Voxels view, ColumnRuns runs, int x, int y, int z, int faces) {
+        int height = 0;
+        boolean floor;
+        boolean ceiling;
+        if ((faces & SurfaceIndex.UP) != 0) {
+            int above = runs.runEnd(x, y + 1, z);
+            if (above >= runs.getTop(x, z)) {
+                // The run goes on above the scanned blocks
+                while (above < view.getMaxHeight() && isInside(view, x, above, z)) {
+                    above += 1;
+                }
             }
-            context.ceiling = context.height >= 2;
+            height = above - (y + 1);
+            floor = height >= 2;
         } else {
-            context.ceiling = false;
+            floor = false;
         }
-        context.wall = !context.floor && !context.ceiling;
-        context.horizontal = context.faces.contains(BlockFace.NORTH)
-            || context.faces.contains(BlockFace.EAST)
-            || context.faces.contains(BlockFace.SOUTH)
-            || context.faces.contains(BlockFace.WEST);
+        if (!floor && (faces & SurfaceIndex.DOWN) != 0) {
+            height = y - runs.runStart(x, y - 1, z);
+            ceiling = height >= 2;
+        } else {
+            ceiling = false;
+        }
+        int info = faces;
+        if (floor) info |= SurfaceIndex.FLOOR;
+        if (ceiling) info |= SurfaceIndex.CEILING;
+        if (!floor && !ceiling) info |= SurfaceIndex.WALL;
+        if ((faces & SurfaceIndex.HORIZONTAL_FACES) != 0) info |= SurfaceIndex.HORIZONTAL;
+        return SurfaceIndex.withHeight(info, height);
     }
 
     /**
-     * Place ores. The blocks map will be modified so that ore blocks
-     * are removed.
+     * Place ores. Surfaces turned into ore blocks are removed from
+     * the index.  Veins are counted into the slot of the biome type
+     * at their origin.  Candidates, veins and their borders are all sets
+     * of packed positions, so the cost is linear in the number of
+     * surfaces.
+     *
+     * Origins are the candidates with the lowest hash, and each vein
+     * draws from its origin, so the order of the surfaces does not
+     * matter.
      */
-    private void placeOres(Map<Block, Context> blocks) {
-        List<Block> oreBlocks = blocks.keySet().stream()
-            .filter(b -> {
-                    Context context = blocks.get(b);
-                    return context.horizontal;
-                })
-            .collect(Collectors.toList());
+    private void placeOres(Voxels view, SurfaceIndex surfaces, Context context,
+                           Blocks.PositionFunction<Biomes.Type> types, int[] veins) {
+        LongSet oreBlocks = new LongSet(surfaces.size());
+        for (int i = 0; i < surfaces.size(); i += 1) {
+            if (surfaces.has(i, SurfaceIndex.HORIZONTAL)) {
+                oreBlocks.add(ChunkView.key(surfaces.getX(i), surfaces.getY(i), surfaces.getZ(i)));
+            }
+        }
         if (oreBlocks.isEmpty()) return;
-        Random random = blocks.values().iterator().next().random;
         // For comparison:
         // Vanilla iron ore tries to spawn 20 times per chunk
         // Vanilla coal ore tries to spawn 20 times per chunk
         // Many chunks have 500-1000 wall blocks; 800 / 100 = 8
         int total = oreBlocks.size() / 100;
         if (total > 8) total = 8;
+        LongSet vein = new LongSet(16);
+        LongSet adjacent = new LongSet(32);
         ORE_BLOCKS:
         for (int i = 0; i < total; i += 1) {
             if (oreBlocks.isEmpty()) break;
-            Block origin = oreBlocks.get(random.nextInt(oreBlocks.size()));
-            double noiseS = getNoise(origin, 1.0);
+            final long origin = firstByHash(oreBlocks, BlockRandom.Purpose.ORE_ORIGIN);
+            final int ox = ChunkView.keyX(origin);
+            final int oy = ChunkView.keyY(origin);
+            final int oz = ChunkView.keyZ(origin);
+            final SplittableRandom sizeRandom = random.at(ox, oy, oz, BlockRandom.Purpose.ORE_SIZE);
+            double noiseS = getNoise(context, ox, oy, oz, 1.0);
             final Material ore;
             final int veinSize;
             if (noiseS > 0.25) {
-                ore = origin.getY() < 4
+                ore = oy < 4
                     ? Material.DEEPSLATE_DIAMOND_ORE
                     : Material.DIAMOND_ORE;
-                veinSize = rndDist(random, 4, 3);
+                veinSize = rndDist(sizeRandom, 4, 3);
             } else if (noiseS < -0.25) {
-                ore = origin.getY() < 4
+                ore = oy < 4
                     ? Material.DEEPSLATE_GOLD_ORE
                     : Material.GOLD_ORE;
-                veinSize = rndDist(random, 6, 4);
+                veinSize = rndDist(sizeRandom, 6, 4);
             } else {
-                ore = origin.getY() < 4
+                ore = oy < 4
                     ? Material.DEEPSLATE_LAPIS_ORE
                     : Material.LAPIS_ORE;
-                veinSize = rndDist(random, 6, 4);
+                veinSize = rndDist(sizeRandom, 6, 4);
+            }
+            growVein(view, origin, veinSize, random.at(ox, oy, oz, BlockRandom.Purpose.VEIN), vein, adjacent);
+            veins[Metrics.slot(types.apply(ox, oy, oz))] += 1;
+            for (int j = 0; j < vein.size(); j += 1) {
+                final long block = vein.get(j);
+                final int bx = ChunkView.keyX(block);
+                final int by = ChunkView.keyY(block);
+                final int bz = ChunkView.keyZ(block);
+                view.set(bx, by, bz, ore);
+                final int index = surfaces.find(bx, by, bz);
+                if (index >= 0) surfaces.remove(index);
+                oreBlocks.remove(block);
             }
-            List<Block> vein = growVein(origin, veinSize, random);
-            for (Block block : vein) {
-                set(block, ore);
-                blocks.remove(block);
+        }
+    }
+
+    /**
+     * The position in the set with the lowest hash for the purpose.
+     */
+    private long firstByHash(LongSet set, BlockRandom.Purpose purpose) {
+        long result = set.get(0);
+        long min = Long.MAX_VALUE;
+        for (int i = 0; i < set.size(); i += 1) {
+            final long key = set.get(i);
+            final long hash = random.hash(ChunkView.keyX(key), ChunkView.keyY(key), ChunkView.keyZ(key), purpose);
+            if (Long.compareUnsigned(hash, min) < 0) {
+                min = hash;
+                result = key;
             }
-            oreBlocks.removeAll(vein);
         }
+        return result;
     }
 
-    private int rndDist(Random random, int median, int dist) {
+    private int rndDist(SplittableRandom random, int median, int dist) {
         return median + random.nextInt(dist + 1) - random.nextInt(dist + 1);
     }
 
-    private List<Block> growVein(Block origin, int size, Random random) {
-        List<Block> vein = new ArrayList<>(size);
+    /**
+     * Grow a vein from the origin into the given set.  Both sets
+     * are cleared first.
+     */
+    private void growVein(Voxels view, long origin, int size, SplittableRandom random,
+                          LongSet vein, LongSet adjacent) {
+        final int ox = ChunkView.keyX(origin);
+        final int oy = ChunkView.keyY(origin);
+        final int oz = ChunkView.keyZ(origin);
+        vein.clear();
+        adjacent.clear();
         vein.add(origin);
-        List<Block> adjacent = new ArrayList<>();
-        Block pivot = origin;
+        long pivot = origin;
         for (int i = 1; i < size; i += 1) {
             for (BlockFace face : FACING_NEIGHBORS) {
-                Block nbor = pivot.getRelative(face);
+                final int nx = ChunkView.keyX(pivot) + face.getModX();
+                final int ny = ChunkView.keyY(pivot) + face.getModY();
+                final int nz = ChunkView.keyZ(pivot) + face.getModZ();
+                final long nbor = ChunkView.key(nx, ny, nz);
                 if (vein.contains(nbor)) continue;
                 if (adjacent.contains(nbor)) continue;
-                if (!canReplace(nbor)) continue;
-                if (Math.abs(nbor.getX() - origin.getX()) > 4) continue;
-                if (Math.abs(nbor.getZ() - origin.getZ()) > 4) continue;
-                if (Math.abs(nbor.getY() - origin.getY()) > 5) continue;
+                if (!traits.canReplace(view.getType(nx, ny, nz))) continue;
+                if (Math.abs(nx - ox) > 4) continue;
+                if (Math.abs(nz - oz) > 4) continue;
+                if (Math.abs(ny - oy) > 5) continue;
                 adjacent.add(nbor);
             }
             if (adjacent.isEmpty()) break;
-            pivot = adjacent.remove(random.nextInt(adjacent.size()));
+            pivot = adjacent.removeAt(random.nextInt(adjacent.size()));
             vein.add(pivot);
         }
-        return vein;
     }
 
-    private boolean transform(Block block, Context context, Biomes.Type biomeType) {
-        switch (biomeType) {
-        case COLD: return transformCold(block, context);
-        case JUNGLE: return transformJungle(block, context);
-        case DESERT: return transformDesert(block, context);
-        case MUSHROOM: return transformMushroom(block, context);
-        case OCEAN: return transformOcean(block, context);
+    /**
+     * Put down the surface block of the theme, then whatever the
+     * theme builds on and around it.
+     */
+    private void transform(Voxels view, Context context, ThemeTable themes) {
+        final BlockData surface = themes.get(context);
+        if (surface != null) view.set(context.x, context.y, context.z, surface);
+        switch (context.type) {
+        case COLD: transformCold(view, context); break;
+        case JUNGLE: transformJungle(view, context); break;
+        case DESERT: transformDesert(view, context); break;
+        case MUSHROOM: transformMushroom(view, context); break;
+        case OCEAN: transformOcean(view, context, surface); break;
         case MOUNTAIN:
-            return transformMountain(block, context,
-                                     Material.OAK_LOG, Material.STRIPPED_OAK_LOG);
-        case SWAMP: return transformSwamp(block, context);
+            transformMountain(view, context, Material.OAK_LOG, Material.STRIPPED_OAK_LOG);
+            break;
         case SPRUCE:
-            return transformMountain(block, context,
-                                     Material.SPRUCE_LOG, Material.STRIPPED_SPRUCE_LOG);
-        case DARK_FOREST: return transformSwamp(block, context);
-        case PLAINS: case FOREST: case SAVANNA:
-            return transformFlowers(block, context);
-        case RIVER: return transformRiver(block, context);
-        case MESA: return transformMesa(block, context);
-        default: return false;
-        }
-    }
-
-    private boolean transformCold(Block block, Context context) {
-        double noise = getNoise(block, 8.0);
-        if (noise < -0.75) {
-            block.setType(Material.DIRT, false);
-        } else if (noise < 0) {
-            block.setType(Material.SNOW_BLOCK, false);
-        } else if (noise < 0.5) {
-            block.setType(Material.PACKED_ICE, false);
-        } else {
-            block.setType(Material.ICE, false);
+            transformMountain(view, context, Material.SPRUCE_LOG, Material.STRIPPED_SPRUCE_LOG);
+            break;
+        case SWAMP: case DARK_FOREST: transformSwamp(view, context, surface); break;
+        case PLAINS: case FOREST: case SAVANNA: transformFlowers(view, context); break;
+        case MESA: transformMesa(view, context, surface); break;
+        default: break;
         }
+    }
+
+    private static boolean is(BlockData data, Material material) {
+        return data != null && data.getMaterial() == material;
+    }
+
+    /**
+     * Icicles hanging from the ceiling and growing from the floor.
+     */
+    private void transformCold(Voxels view, Context context) {
+        final int x = context.x;
+        final int y = context.y;
+        final int z = context.z;
         if (context.ceiling && context.height > 1) {
             // Icicles
-            double noise2 = getNoise(block, 1.0);
+            double noise2 = getNoise(context, x, y, z, 1.0);
             if (noise2 > 0.5) {
-                int len = context.random.nextInt(Math.min(4, context.height)) + 1;
+                int len = context.nextInt(BlockRandom.Purpose.ICICLE, Math.min(4, context.height)) + 1;
                 for (int i = 1; i <= len; i += 1) {
-                    block.getRelative(0, -i, 0).setType(Material.ICE, false);
+                    view.set(x, y - i, z, Material.ICE);
                 }
             }
         } else if (context.floor && context.height > 1) {
-            double noise2 = getNoise(block, 1.0);
+            double noise2 = getNoise(context, x, y, z, 1.0);
             if (noise2 > 0.5) {
-                int len = context.random.nextInt(Math.min(4, context.height)) + 1;
+                int len = context.nextInt(BlockRandom.Purpose.ICICLE, Math.min(4, context.height)) + 1;
                 for (int i = 1; i <= len; i += 1) {
-                    block.getRelative(0, i, 0).setType(Material.ICE, false);
+                    view.set(x, y + i, z, Material.ICE);
                 }
             }
         }
-        return true;
     }
 
-    private boolean transformDesert(Block block, Context context) {
-        double noise = getNoise(block, 8.0);
-        if (noise < -0.75) {
-            Axis axis = Blocks.randomArray(Axis.values(), context.random);
-            block.setBlockData(Blocks.oriented(Material.BONE_BLOCK, axis), false);
-        } else if (noise < 0) {
-            block.setType(Material.SAND, false);
-        } else if (noise < 0.5) {
-            block.setType(Material.SANDSTONE, false);
-        } else {
-            block.setType(Material.SMOOTH_SANDSTONE, false);
-        }
+    /**
+     * Cacti on sand and dead bushes.
+     */
+    private void transformDesert(Voxels view, Context context) {
+        final int x = context.x;
+        final int y = context.y;
+        final int z = context.z;
         if (context.floor && context.height > 1) {
-            double noise2 = getNoise(block, 1.0);
+            double noise2 = getNoise(context, x, y, z, 1.0);
             if (noise2 > 0.33) {
-                block.setType(Material.SAND, false);
-                Block cactus = block.getRelative(0, 1, 0);
-                int len = 1 + context.random.nextInt(Math.min(3, context.height));
+                view.set(x, y, z, Material.SAND);
+                int cactus = y + 1;
+                int len = 1 + context.nextInt(BlockRandom.Purpose.CACTUS, Math.min(3, context.height));
                 CACTI:
                 for (int i = 0; i < len; i += 1) {
-                    if (!cactus.isEmpty()) break CACTI;
+                    if (!view.isEmpty(x, cactus, z)) break CACTI;
                     for (BlockFace face : HORIZONTAL_NEIGHBORS) {
-                        if (!cactus.getRelative(face).isEmpty()) {
+                        if (!view.isEmpty(x + face.getModX(), cactus, z + face.getModZ())) {
                             break CACTI;
                         }
                     }
-                    cactus.setType(Material.CACTUS, false);
-                    cactus = cactus.getRelative(0, 1, 0);
+                    view.set(x, cactus, z, Material.CACTUS);
+                    cactus += 1;
                 }
             } else if (noise2 < -0.5) {
-                Block above = block.getRelative(0, 1, 0);
-                if (above.isEmpty()) {
-                    set(above, Material.DEAD_BUSH);
+                if (view.isEmpty(x, y + 1, z)) {
+                    view.set(x, y + 1, z, Material.DEAD_BUSH);
                 }
             }
         }
-        return true;
     }
 
-    private boolean transformJungle(Block block, Context context) {
-        double noise = getNoise(block, 8.0);
+    /**
+     * Bushes on the floor and leaves on the ceiling.
+     */
+    private void transformJungle(Voxels view, Context context) {
+        final int x = context.x;
+        final int y = context.y;
+        final int z = context.z;
         if (context.floor) {
-            if (context.height >= 2) {
-                double noise2 = getNoise(block, 1.0);
-                if (noise2 > 0.6) {
-                    // Bushes
-                    set(block, Material.JUNGLE_LOG);
-                    Block log = block.getRelative(0, 1, 0);
-                    set(log, Material.JUNGLE_LOG);
-                    for (BlockFace face : FACING_NEIGHBORS) {
-                        if (face == BlockFace.DOWN) continue;
-                        Block leaf = log.getRelative(face);
-                        if (leaf.isEmpty()) {
-                            set(leaf, Blocks.leaves(Material.JUNGLE_LEAVES));
-                        }
+            double noise2 = getNoise(context, x, y, z, 1.0);
+            if (noise2 > 0.6) {
+                // Bushes
+                view.set(x, y, z, Material.JUNGLE_LOG);
+                view.set(x, y + 1, z, Material.JUNGLE_LOG);
+                for (BlockFace face : FACING_NEIGHBORS) {
+                    if (face == BlockFace.DOWN) continue;
+                    final int lx = x + face.getModX();
+                    final int ly = y + 1 + face.getModY();
+                    final int lz = z + face.getModZ();
+                    if (view.isEmpty(lx, ly, lz)) {
+                        view.set(lx, ly, lz, Blocks.leaves(Material.JUNGLE_LEAVES));
                     }
-                } else if (noise2 < 0) {
-                    // Grass
-                    set(block, Material.GRASS_BLOCK);
-                } else if (noise > 0.5) {
-                    set(block, Material.DIRT_PATH);
-                } else {
-                    set(block, Material.GRASS_BLOCK);
                 }
             }
-        } else if (context.ceiling) {
-            if (noise < 0) {
-                block.setType(Material.MOSSY_COBBLESTONE, false);
-            } else {
-                block.setType(Material.COBBLESTONE, false);
-            }
+        } else if (context.ceiling && context.height >= 3) {
             // Leaves
-            if (context.height >= 3) {
-                double noise2 = getNoise(block, 1.0);
-                if (noise2 > 0.6) {
-                    block.setType(Material.JUNGLE_LOG);
-                    Block leaf = block.getRelative(0, -1, 0);
-                    set(leaf, Blocks.leaves(Material.JUNGLE_LEAVES));
-                }
-            }
-        } else {
-            // Walls
-            if (noise < -0.5) {
-                block.setType(Material.MOSSY_STONE_BRICKS, false);
-            } else if (noise < 0) {
-                block.setType(Material.STONE, false);
-            } else if (noise < 0.5) {
-                block.setType(Material.STONE_BRICKS, false);
-            } else { // > 0.5
-                block.setType(Material.CRACKED_STONE_BRICKS, false);
+            double noise2 = getNoise(context, x, y, z, 1.0);
+            if (noise2 > 0.6) {
+                view.set(x, y, z, Material.JUNGLE_LOG);
+                view.set(x, y - 1, z, Blocks.leaves(Material.JUNGLE_LEAVES));
             }
         }
-        return true;
     }
 
     /**
-     * Mycelium on the floor, mushroom stem and blocks make up the
-     * ceiling. Large and small mushrooms sprouting everywhere.
+     * Large and small mushrooms sprouting everywhere.
      */
-    private boolean transformMushroom(Block block, Context context) {
-        double noise = getNoise(block, 8.0);
-        if (context.floor) {
-            block.setType(Material.MYCELIUM, false);
-            Block above = block.getRelative(0, 1, 0);
-            if (above.isEmpty()) {
-                double noise2 = getNoise(above, 1.0);
-                if (noise2 > 0.6) {
-                    // Try to grow large
-                    if (noise < 0.1) {
-                        context.deferredActions.add(() -> {
-                                if (!block.getWorld().generateTree(above.getLocation(),
-                                                                   TreeType.BROWN_MUSHROOM)) {
-                                    set(above, Material.BROWN_MUSHROOM);
-                                }
-                            });
-                    } else {
-                        context.deferredActions.add(() -> {
-                                if (!block.getWorld().generateTree(above.getLocation(),
-                                                                   TreeType.RED_MUSHROOM)) {
-                                    set(above, Material.RED_MUSHROOM);
-                                }
-                            });
-                    }
-                } else if (noise2 < -0.8) {
-                    return false;
-                } else if (noise2 > 0.3) {
-                    // Small mushrooms
-                    if (noise < 0) {
-                        set(above, Material.BROWN_MUSHROOM);
-                    } else {
-                        set(above, Material.RED_MUSHROOM);
-                    }
-                }
-            }
-        } else if (context.ceiling) {
-            double noise2 = getNoise(block, 1.0);
-            if (noise2 < -0.5) { // noise2!
-                block.setType(Material.GLOWSTONE, false);
-            } else if (noise < 0) { // NOT noise2
-                block.setType(Material.BROWN_MUSHROOM_BLOCK, false);
+    private void transformMushroom(Voxels view, Context context) {
+        final int x = context.x;
+        final int y = context.y;
+        final int z = context.z;
+        if (!context.floor || !view.isEmpty(x, y + 1, z)) return;
+        double noise = getNoise(context, x, y, z, 8.0);
+        double noise2 = getNoise(context, x, y + 1, z, 1.0);
+        if (noise2 > 0.6) {
+            // Try to grow large
+            if (noise < 0.1) {
+                context.features.add(new FeatureQueue.Feature(x, y + 1, z, TreeType.BROWN_MUSHROOM,
+                                                              Material.BROWN_MUSHROOM, context.type));
             } else {
-                block.setType(Material.RED_MUSHROOM_BLOCK, false);
+                context.features.add(new FeatureQueue.Feature(x, y + 1, z, TreeType.RED_MUSHROOM,
+                                                              Material.RED_MUSHROOM, context.type));
             }
-        } else if (context.wall) {
-            if (block.getY() < 4) return false;
-            if (noise < -0.25) {
-                block.setType(Material.BROWN_MUSHROOM_BLOCK, false);
-            } else if (noise > 0.25) {
-                block.setType(Material.RED_MUSHROOM_BLOCK, false);
+        } else if (noise2 < -0.8) {
+            return;
+        } else if (noise2 > 0.3) {
+            // Small mushrooms
+            if (noise < 0) {
+                view.set(x, y + 1, z, Material.BROWN_MUSHROOM);
             } else {
-                block.setType(Material.MUSHROOM_STEM, false);
+                view.set(x, y + 1, z, Material.RED_MUSHROOM);
             }
         }
-        return true;
     }
 
     /**
-     * Underwater caves with prismarine and puddles of water. The
-     * floor is sand and gravel. The ceiling is lit by sea
-     * lanterns. Water drips from the ceiling.
+     * Puddles of water on the floor, which turn to sand where they
+     * would spill. The ceiling is lit by sea lanterns. Water drips
+     * from the ceiling.
      */
-    private boolean transformOcean(Block block, Context context) {
+    private void transformOcean(Voxels view, Context context, BlockData surface) {
+        final int x = context.x;
+        final int y = context.y;
+        final int z = context.z;
         if (context.floor) {
-            double noise = getNoise(block, 8.0);
-            if (noise < -0.6 || noise > 0.6) {
-                boolean empty = false;
-                for (BlockFace face : HORIZONTAL_NEIGHBORS) {
-                    if (block.getRelative(face).isEmpty()) {
-                        empty = true;
-                        break;
-                    }
-                }
-                if (empty) {
-                    block.setType(Material.SAND, false);
-                } else {
-                    block.setType(Material.WATER, false);
+            if (!is(surface, Material.WATER)) return;
+            for (BlockFace face : HORIZONTAL_NEIGHBORS) {
+                if (view.isEmpty(x + face.getModX(), y, z + face.getModZ())) {
+                    view.set(x, y, z, Material.SAND);
+                    break;
                 }
-            } else if (noise < 0) {
-                block.setType(Material.SAND, false);
-            } else {
-                block.setType(Material.GRAVEL, false);
             }
         } else if (context.ceiling) {
-            double noise = getNoise(block, 8.0);
-            if (noise < -0.5) {
-                block.setType(Material.OBSIDIAN, false);
-            } else if (noise < 0) {
-                block.setType(Material.PRISMARINE, false);
-            } else if (noise < 0.5) {
-                block.setType(Material.DARK_PRISMARINE, false);
-            } else {
-                block.setType(Material.PRISMARINE_BRICKS, false);
-            }
-            double noise2 = getNoise(block, 1.0);
+            double noise2 = getNoise(context, x, y, z, 1.0);
             if (noise2 > 0.6) {
-                block.setType(Material.WATER, true);
+                view.set(x, y, z, Material.WATER, true);
                 if (noise2 > 0.7) {
-                    set(block, 0, 1, 0, Material.SEA_LANTERN);
+                    view.set(x, y + 1, z, Material.SEA_LANTERN);
                 }
             }
-        } else {
-            double noise = getNoise(block, 8.0);
-            if (noise < -0.5) {
-                block.setType(Material.MOSSY_STONE_BRICKS, false);
-            } else if (noise < 0) {
-                block.setType(Material.PRISMARINE_BRICKS, false);
-            } else if (noise < 0.5) {
-                block.setType(Material.PRISMARINE, false);
-            } else {
-                block.setType(Material.MOSSY_COBBLESTONE, false);
-            }
         }
-        return true;
     }
 
     /**
-     * Abandoned mineshafts with wooden rafters. The walls lit by
-     * redstone torches, the rafters rarely by lanterns.
+     * Abandoned mineshafts with wooden rafters and cobblestone
+     * steps. The walls lit by redstone torches, the rafters rarely
+     * by lanterns.
      */
-    private boolean transformMountain(Block block, Context context,
-                              Material log, Material strippedLog) {
+    private void transformMountain(Voxels view, Context context,
+                                   Material log, Material strippedLog) {
+        final int x = context.x;
+        final int y = context.y;
+        final int z = context.z;
         if (context.ceiling) {
             final double scale = 128.0;
-            double noiseX = getNoise(block, scale);
+            double noiseX = getNoise(context, x, y, z, scale);
             int dx = (int) Math.floor(noiseX * 3.0 + 3.0);
             int dz = (int) Math.floor(noiseX * 3.0 + 3.0);
             boolean raft = context.height < 8
-                && Blocks.makeRaftersBelow(block, 6, dx, dz, b -> {
-                        double noise = getNoise(b, 8);
+                && Blocks.makeRaftersBelow(view, x, y, z, 6, dx, dz, (bx, by, bz) -> {
+                        double noise = getNoise(context, bx, by, bz, 8);
                         return noise < 0.4 ? log : strippedLog;
                     });
             if (context.height > 2 && raft) {
-                Block below = block.getRelative(0, -2, 0);
-                if (below.isEmpty()) {
-                    double noiseS = getNoise(below, 1.0);
+                if (view.isEmpty(x, y - 2, z)) {
+                    double noiseS = getNoise(context, x, y - 2, z, 1.0);
                     if (Math.abs(noiseS) < 0.005) {
-                        set(below, Blocks.hangingLantern(true));
+                        view.set(x, y - 2, z, Blocks.hangingLantern(true));
                     }
                 }
             }
-            double noise = getNoise(block, 8.0);
-            if (noise > 0.5) {
-                set(block, Material.GRAVEL);
-            } else if (noise > 0) {
-                set(block, Material.STONE);
-            } else if (noise > -0.5) {
-                set(block, Material.ANDESITE);
-            } else {
-                set(block, Material.SPRUCE_PLANKS);
-            }
         } else if (context.floor) {
-            if (context.horizontal) {
-                if (!context.faces.contains(BlockFace.DOWN)
-                    && context.faces.contains(BlockFace.UP)
-                    && block.getRelative(BlockFace.UP).isEmpty()) {
-                    List<BlockFace> faces = context.faces.stream()
-                        .filter(f -> f.getModY() == 0)
-                        .collect(Collectors.toList());
-                    if (faces.size() == 1) {
-                        BlockFace face = faces.get(0).getOppositeFace();
-                        set(block, Blocks.direct(Material.COBBLESTONE_STAIRS, face));
-                    } else if (faces.size() > 1) {
-                        set(block, Material.COBBLESTONE_SLAB);
-                    } else {
-                        set(block, Material.COBBLESTONE);
-                    }
+            if (!context.horizontal) return;
+            if (!context.hasFace(BlockFace.DOWN)
+                && context.hasFace(BlockFace.UP)
+                && view.isEmpty(x, y + 1, z)) {
+                final int faces = context.faces & SurfaceIndex.HORIZONTAL_FACES;
+                if (Integer.bitCount(faces) == 1) {
+                    BlockFace face = FACING_NEIGHBORS[Integer.numberOfTrailingZeros(faces)].getOppositeFace();
+                    view.set(x, y, z, Blocks.direct(Material.COBBLESTONE_STAIRS, face));
+                } else if (faces != 0) {
+                    view.set(x, y, z, Material.COBBLESTONE_SLAB);
                 } else {
-                    set(block, Material.POLISHED_ANDESITE);
+                    view.set(x, y, z, Material.COBBLESTONE);
                 }
             } else {
-                double noise = getNoise(block, 8.0);
-                if (noise < -0.8) {
-                    set(block, Material.CRACKED_STONE_BRICKS);
-                } else if (noise < -0.6) {
-                    set(block, Material.STONE_BRICKS);
-                } else if (noise < 0) {
-                    set(block, Material.STONE);
-                } else if (noise > 0.6) {
-                    set(block, Material.MOSSY_COBBLESTONE);
-                } else {
-                    set(block, Material.COBBLESTONE);
-                }
+                view.set(x, y, z, Material.POLISHED_ANDESITE);
             }
         } else if (context.wall) {
-            double noiseS = getNoise(block, 1.0);
-            if (block.getY() >= 4) {
-                if (noiseS > 0.5) {
-                    set(block, Material.MOSSY_STONE_BRICKS);
-                } else if (noiseS < -0.5) {
-                    set(block, Material.CRACKED_STONE_BRICKS);
-                } else {
-                    double noise = getNoise(block, 8.0);
-                    if (noise < 0) {
-                        set(block, Material.STONE);
-                    } else if (noise > 0.6) {
-                        set(block, Material.POLISHED_ANDESITE);
-                    } else {
-                        set(block, Material.ANDESITE);
-                    }
-                }
-            }
+            double noiseS = getNoise(context, x, y, z, 1.0);
             if (noiseS > 0.9) {
                 List<BlockFace> hor = new ArrayList<>(4);
                 for (BlockFace face : HORIZONTAL_NEIGHBORS) {
-                    if (context.faces.contains(face)) hor.add(face);
+                    if (context.hasFace(face)) hor.add(face);
                 }
                 if (!hor.isEmpty()) {
-                    BlockFace face = hor.get(context.random.nextInt(hor.size()));
-                    Block torch = block.getRelative(face);
-                    if (torch.isEmpty()) {
+                    BlockFace face = hor.get(context.nextInt(BlockRandom.Purpose.TORCH_FACE, hor.size()));
+                    final int tx = x + face.getModX();
+                    final int tz = z + face.getModZ();
+                    if (view.isEmpty(tx, y, tz)) {
                         if (noiseS > 0.95) {
-                            set(torch, Blocks.direct(Material.WALL_TORCH, face));
+                            view.set(tx, y, tz, Blocks.direct(Material.WALL_TORCH, face));
                         } else {
-                            set(torch, Blocks.direct(Material.REDSTONE_WALL_TORCH, face));
+                            view.set(tx, y, tz, Blocks.direct(Material.REDSTONE_WALL_TORCH, face));
                         }
                     }
                 }
             }
         }
-        return true;
     }
 
     /**
-     * Dirt and clay floor with puddles of water and lily pads.
-     * Slime stalactites.
+     * Puddles of water with clay or dirt below and lily pads above,
+     * bordered by grass. Plants on land. Slime stalactites.
      */
-    private boolean transformSwamp(Block block, Context context) {
+    private void transformSwamp(Voxels view, Context context, BlockData surface) {
+        final int x = context.x;
+        final int y = context.y;
+        final int z = context.z;
         if (context.floor) {
-            double noise = getNoise(block, 8.0);
-            if (noise < 0) {
+            if (is(surface, Material.WATER)) {
                 // Water puddle
                 boolean empty = false;
                 for (BlockFace face : HORIZONTAL_NEIGHBORS) {
-                    if (context.faces.contains(face)) {
+                    if (context.hasFace(face)) {
                         empty = true;
                         break;
                     }
-                    Block nbor = block.getRelative(face);
-                    if (!nbor.getType().isSolid() && !nbor.isLiquid()) {
+                    Material nbor = view.getType(x + face.getModX(), y, z + face.getModZ());
+                    if (!nbor.isSolid() && nbor != Material.WATER && nbor != Material.LAVA) {
                         empty = true;
                         break;
                     }
                 }
                 if (empty) {
                     // Border
-                    set(block, Material.GRASS_BLOCK);
-                    double noiseS = getNoise(block, 1.0);
+                    view.set(x, y, z, Material.GRASS_BLOCK);
                 } else {
-                    Block below = block.getRelative(0, -1, 0);
-                    double noiseBelow = getNoise(block, 6.0);
+                    double noiseBelow = getNoise(context, x, y, z, 6.0);
                     if (noiseBelow > 0.2) {
-                        set(below, Material.CLAY);
+                        view.set(x, y - 1, z, Material.CLAY);
                     } else {
-                        set(below, Material.DIRT);
+                        view.set(x, y - 1, z, Material.DIRT);
                     }
                     // Puddles with lilies and seagrass
-                    double noiseS = getNoise(block, 1.0);
+                    double noiseS = getNoise(context, x, y, z, 1.0);
                     if (noiseS > 0.3) {
-                        set(block, Material.SEAGRASS);
-                    } else {
-                        set(block, Material.WATER);
+                        view.set(x, y, z, Material.SEAGRASS);
                     }
-                    Block above = block.getRelative(0, 1, 0);
-                    if (above.isEmpty()) {
-                        double noiseAbove = getNoise(above, 1.0);
+                    if (view.isEmpty(x, y + 1, z)) {
+                        double noiseAbove = getNoise(context, x, y + 1, z, 1.0);
                         if (noiseAbove > 0.3) {
-                            set(above, Material.LILY_PAD);
+                            view.set(x, y + 1, z, Material.LILY_PAD);
                         }
                     }
                 }
-            } else {
+            } else if (view.isEmpty(x, y + 1, z)) {
                 // Land
-                set(block, Material.GRASS_BLOCK);
-                Block above = block.getRelative(0, 1, 0);
-                if (above.isEmpty()) {
-                    double noiseS = getNoise(above, 1.0);
-                    // mushroom, orchid, grass, dead bush, sugar cane
-                    if (noiseS < 0.5) {
-                        if (noiseS > 0.4) {
-                            set(above, Material.DEAD_BUSH);
-                        } else if (noiseS > 0.3) {
-                            return false;
-                        } else if (noiseS > 0.2) {
-                            set(above, Material.SHORT_GRASS);
-                        } else if (noiseS > 0.1) {
-                            set(above, Material.BLUE_ORCHID);
-                        } else if (noiseS > 0.0) {
-                            set(above, Material.BROWN_MUSHROOM);
-                        } else if (noiseS > -0.1) {
-                            return false;
-                        } else if (noiseS > -0.2) {
-                            set(above, Material.DEAD_BUSH);
-                        }
+                double noiseS = getNoise(context, x, y + 1, z, 1.0);
+                // mushroom, orchid, grass, dead bush, sugar cane
+                if (noiseS < 0.5) {
+                    if (noiseS > 0.4) {
+                        view.set(x, y + 1, z, Material.DEAD_BUSH);
+                    } else if (noiseS > 0.3) {
+                        return;
+                    } else if (noiseS > 0.2) {
+                        view.set(x, y + 1, z, Material.SHORT_GRASS);
+                    } else if (noiseS > 0.1) {
+                        view.set(x, y + 1, z, Material.BLUE_ORCHID);
+                    } else if (noiseS > 0.0) {
+                        view.set(x, y + 1, z, Material.BROWN_MUSHROOM);
+                    } else if (noiseS > -0.1) {
+                        return;
+                    } else if (noiseS > -0.2) {
+                        view.set(x, y + 1, z, Material.DEAD_BUSH);
                     }
                 }
             }
-        } else if (context.wall) {
-            if (block.getY() < 4) return false;
-            double noise = getNoise(block, 8.0);
-            if (noise > 0) {
-                set(block, Material.SAND);
-            } else {
-                set(block, Material.DIRT);
-            }
         } else if (context.ceiling) {
-            double noiseS = getNoise(block, 1.0);
-            if (noiseS > 0.4 && context.height > 1) {
-                int len = 1 + context.random.nextInt(Math.min(4, context.height));
-                for (int i = 0; i < len; i += 1) {
-                    set(block, Material.SLIME_BLOCK);
-                    block = block.getRelative(0, -1, 0);
-                }
-            } else {
-                set(block, Blocks.leaves(Material.OAK_LEAVES));
-                if (noiseS < -0.3) {
-                    set(block, 0, 1, 0, Material.OAK_WOOD);
+            if (is(surface, Material.SLIME_BLOCK)) {
+                int len = 1 + context.nextInt(BlockRandom.Purpose.SLIME, Math.min(4, context.height));
+                for (int i = 1; i < len; i += 1) {
+                    view.set(x, y - i, z, Material.SLIME_BLOCK);
                 }
+            } else if (getNoise(context, x, y, z, 1.0) < -0.3) {
+                view.set(x, y + 1, z, Material.OAK_WOOD);
             }
         }
-        return true;
     }
 
     /**
-     * Grassy floor with flowers. A natural look.
+     * Flowers and grass. A natural look.
      */
-    private boolean transformFlowers(Block block, Context context) {
-        if (context.floor) {
-            set(block, Material.GRASS_BLOCK);
-            Block above = block.getRelative(0, 1, 0);
-            if (above.isEmpty()) {
-                double noiseS = getNoise(above, 1.0);
-                if (noiseS > 0.2) {
-                    double noise = getNoise(above, 8.0);
-                    int flower = (int) (noise * 10.0);
-                    switch (flower) {
-                    case -8:
-                        set(above, Material.DANDELION); break;
-                    case -7:
-                        set(above, Material.POPPY); break;
-                    case -6:
-                        set(above, Material.BLUE_ORCHID); break;
-                    case -5:
-                        set(above, Material.ALLIUM); break;
-                    case -4:
-                        set(above, Material.AZURE_BLUET); break;
-                    case -3:
-                        set(above, Material.RED_TULIP); break;
-                    case -2:
-                        set(above, Material.ORANGE_TULIP); break;
-                    case -1:
-                        set(above, Material.WHITE_TULIP); break;
-                    case 0:
-                        set(above, Material.PINK_TULIP); break;
-                    case 1:
-                        set(above, Material.OXEYE_DAISY); break;
-                    case 2:
-                        set(above, Material.CORNFLOWER); break;
-                    case 3:
-                        set(above, Material.LILY_OF_THE_VALLEY); break;
-                    case 4:
-                    case 5:
-                    case 6:
-                    case 7:
-                        break;
-                    case 8:
-                        set(above, Material.WITHER_ROSE); break;
-                    default: break;
-                    }
-                } else if (noiseS < -0.5) {
-                    return false;
-                } else if (noiseS < -0.2) {
-                    set(above, Material.SHORT_GRASS);
-                }
-            }
-        } else if (context.ceiling) {
-            double noise = getNoise(block, 8);
-            if (noise < 0) {
-                set(block, Material.DIRT);
-            } else if (noise > 0.5) {
-                set(block, Material.COARSE_DIRT);
-            } else {
-                set(block, Material.GRANITE);
-            }
-        } else if (context.wall) {
-            if (block.getY() < 4) return false;
-            double noise = getNoise(block, 8);
-            if (noise < 0) {
-                set(block, Material.SAND);
-            } else if (noise > 0.5) {
-                set(block, Material.ANDESITE);
-            } else {
-                set(block, Material.STONE);
-            }
-            double noiseS = getNoise(block, 1.0);
-            if (noiseS > 0.95) {
-                List<BlockFace> hor = new ArrayList<>(4);
-                for (BlockFace face : HORIZONTAL_NEIGHBORS) {
-                    if (context.faces.contains(face)) hor.add(face);
-                }
+    private void transformFlowers(Voxels view, Context context) {
+        final int x = context.x;
+        final int y = context.y;
+        final int z = context.z;
+        if (!context.floor) return;
+        final int above = y + 1;
+        if (!view.isEmpty(x, above, z)) return;
+        double noiseS = getNoise(context, x, above, z, 1.0);
+        if (noiseS > 0.2) {
+            double noise = getNoise(context, x, above, z, 8.0);
+            int flower = (int) (noise * 10.0);
+            switch (flower) {
+            case -8:
+                view.set(x, above, z, Material.DANDELION); break;
+            case -7:
+                view.set(x, above, z, Material.POPPY); break;
+            case -6:
+                view.set(x, above, z, Material.BLUE_ORCHID); break;
+            case -5:
+                view.set(x, above, z, Material.ALLIUM); break;
+            case -4:
+                view.set(x, above, z, Material.AZURE_BLUET); break;
+            case -3:
+                view.set(x, above, z, Material.RED_TULIP); break;
+            case -2:
+                view.set(x, above, z, Material.ORANGE_TULIP); break;
+            case -1:
+                view.set(x, above, z, Material.WHITE_TULIP); break;
+            case 0:
+                view.set(x, above, z, Material.PINK_TULIP); break;
+            case 1:
+                view.set(x, above, z, Material.OXEYE_DAISY); break;
+            case 2:
+                view.set(x, above, z, Material.CORNFLOWER); break;
+            case 3:
+                view.set(x, above, z, Material.LILY_OF_THE_VALLEY); break;
+            case 4:
+            case 5:
+            case 6:
+            case 7:
+                break;
+            case 8:
+                view.set(x, above, z, Material.WITHER_ROSE); break;
+            default: break;
             }
+        } else if (noiseS < -0.5) {
+            return;
+        } else if (noiseS < -0.2) {
+            view.set(x, above, z, Material.SHORT_GRASS);
         }
-        return true;
     }
 
     /**
-     * Sand, gravel, clay. The ceiling is made of clay and diorite.
+     * Dead bushes and cacti on red sand.
      */
-    private boolean transformRiver(Block block, Context context) {
-        if (context.floor) {
-            double noise = getNoise(block, 8);
-            if (noise < -0.5) {
-                set(block, Material.CLAY);
-            } else if (noise > 0.5) {
-                set(block, Material.SAND);
-            } else {
-                set(block, Material.DIRT);
-            }
-        } else if (context.ceiling || context.wall) {
-            if (block.getY() < 4) return false;
-            double noise = getNoise(block, 8);
-            if (noise < 0) {
-                set(block, Material.CLAY);
-            } else {
-                set(block, Material.DIORITE);
-            }
-        }
-        return true;
-    }
-
-    private boolean transformMesa(Block block, Context context) {
-        if (context.floor) {
-            double noise = getNoise(block, 8);
-            if (noise > 0.5) {
-                set(block, Material.RED_SANDSTONE);
-            } else {
-                set(block, Material.RED_SAND);
-                Block above = block.getRelative(0, 1, 0);
-                if (above.isEmpty()) {
-                    double noiseS = getNoise(above, 1);
-                    if (noiseS > 0.3) {
-                        set(above, Material.DEAD_BUSH);
-                    } else if (noiseS < -0.4) {
-                        int len = 1 + context.random.nextInt(Math.min(3, context.height));
-                        CACTUS:
-                        for (int i = 0; i < len; i += 1) {
-                            if (!above.isEmpty()) break;
-                            for (BlockFace face : HORIZONTAL_NEIGHBORS) {
-                                if (!above.getRelative(face).isEmpty()) break CACTUS;
-                            }
-                            set(above, Material.CACTUS);
-                            above = above.getRelative(0, 1, 0);
-                        }
-                    }
+    private void transformMesa(Voxels view, Context context, BlockData surface) {
+        final int x = context.x;
+        final int y = context.y;
+        final int z = context.z;
+        if (!context.floor || !is(surface, Material.RED_SAND)) return;
+        int above = y + 1;
+        if (!view.isEmpty(x, above, z)) return;
+        double noiseS = getNoise(context, x, above, z, 1);
+        if (noiseS > 0.3) {
+            view.set(x, above, z, Material.DEAD_BUSH);
+        } else if (noiseS < -0.4) {
+            int len = 1 + context.nextInt(BlockRandom.Purpose.CACTUS, Math.min(3, context.height));
+            CACTUS:
+            for (int i = 0; i < len; i += 1) {
+                if (!view.isEmpty(x, above, z)) break;
+                for (BlockFace face : HORIZONTAL_NEIGHBORS) {
+                    if (!view.isEmpty(x + face.getModX(), above, z + face.getModZ())) break CACTUS;
                 }
-            }
-        } else if (context.ceiling) {
-            set(block, Material.RED_SANDSTONE);
-        } else if (context.wall) {
-            if (block.getY() < 4) return false;
-            switch (block.getY() % 7) {
-            case 0: set(block, Material.RED_TERRACOTTA); break;
-            case 1: set(block, Material.ORANGE_TERRACOTTA); break;
-            case 2: set(block, Material.YELLOW_TERRACOTTA); break;
-            case 3: set(block, Material.WHITE_TERRACOTTA); break;
-            case 4: set(block, Material.LIGHT_GRAY_TERRACOTTA); break;
-            case 5: set(block, Material.BROWN_TERRACOTTA); break;
-            case 6: set(block, Material.TERRACOTTA); break;
-            default: break;
+                view.set(x, above, z, Material.CACTUS);
+                above += 1;
             }
         }
-        return true;
     }
 
-    private int getIntNoise(Block block, double scale, int factor) {
-        double noise = getNoise(block, scale);
+    private int getIntNoise(Context context, int x, int y, int z, double scale, int factor) {
+        double noise = getNoise(context, x, y, z, scale);
         int val = (int) (noise * factor);
         return val;
     }
 
-    private double getNoise(Block block, double scale) {
-        return noiseGenerator.noise(block.getX() / scale,
-                                    block.getY() / scale,
-                                    block.getZ() / scale);
+    private double getNoise(Context context, int x, int y, int z, double scale) {
+        return context.noise.get(x, y, z, scale);
     }
 
     protected void onChunkDecorate(Chunk chunk) {
-        transformChunk(chunk);
+        plugin.getPipeline().submit(this, chunk);
     }
 }
@@ -0,0 +1,220 @@
+package com.cavetale.caves;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import org.bukkit.Chunk;
+import org.bukkit.World;
+
+/**
+ * Decorate chunks off the main thread.  Each chunk is captured as
+ * snapshots on the main thread, scanned, classified and planned by
+ * a bounded pool of workers in one go, and the resulting edits are
+ * applied back on the main thread.
+ *
+ * The number of chunks in flight is capped so memory stays bounded
+ * during pre-generation.  Once the cap is reached, chunks are
+ * decorated synchronously, which slows down the generator instead
+ * of piling up snapshots.
+ *
+ * A chunk next to one in flight is deferred until that one is
+ * applied, holding a ticket meanwhile.  Both would capture and write
+ * the blocks along their border, and whichever came last would
+ * undo the other.  Deferred chunks count toward the cap.  Once it
+ * is reached, the neighbors in flight are finished right away on
+ * the main thread instead.  Only a neighbor of a bulk job, which
+ * cannot be finished from here, is still deferred beyond the cap.
+ */
+final class CavePipeline {
+    private final CavesPlugin plugin;
+    private final ExecutorService workers;
+    private final Executor mainThread;
+    private final int maxInFlight;
+    private final Map<Key, Running> inFlight = new LinkedHashMap<>();
+    private final Map<Key, Deferred> deferred = new LinkedHashMap<>();
+
+    private record Key(World world, int x, int z) { }
+
+    private record Running(ChunkJob job, CaveDecorator decorator, CompletableFuture<Void> planned) { }
+
+    private record Deferred(CaveDecorator decorator, Chunk chunk) { }
+
+    CavePipeline(final CavesPlugin plugin, final int workerCount, final int maxInFlight) {
+        this.plugin = plugin;
+        final int threads = workerCount > 0
+            ? workerCount
+            : Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+        final AtomicInteger threadId = new AtomicInteger();
+        this.workers = Executors.newFixedThreadPool(threads, runnable -> {
+                Thread thread = new Thread(runnable, "Caves-Worker-" + threadId.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        this.mainThread = runnable -> plugin.getServer().getScheduler().runTask(plugin, runnable);
+        this.maxInFlight = Math.max(1, maxInFlight);
+    }
+
+    /**
+     * Decorate a chunk, unless the ledger has it as decorated or in
+     * flight, or it is deferred already.  Must be called on the main
+     * thread.
+     */
+    void submit(CaveDecorator decorator, Chunk chunk) {
+        final ChunkLedger ledger = plugin.getLedger();
+        final World world = chunk.getWorld();
+        final int x = chunk.getX();
+        final int z = chunk.getZ();
+        if (ledger.isDecorated(world, x, z)) return;
+        final Key key = new Key(world, x, z);
+        if (deferred.containsKey(key)) return;
+        final boolean full = inFlight.size() + deferred.size() >= maxInFlight;
+        if (ledger.isNearInFlight(world, x, z)) {
+            if (ledger.isInFlight(world, x, z)) return;
+            if (full) finishNear(world, x, z);
+            // Still near if not full, or if a bulk job holds the
+            // neighbor, or if finishing one started another.
+            if (ledger.isNearInFlight(world, x, z)) {
+                plugin.getTickets().add(world, x, z);
+                deferred.put(key, new Deferred(decorator, chunk));
+                return;
+            }
+        }
+        if (!ledger.begin(world, x, z)) return;
+        if (full) {
+            boolean success = false;
+            try {
+                decorator.transformChunk(chunk, null);
+                success = true;
+            } finally {
+                ledger.finish(world, x, z, success);
+            }
+            return;
+        }
+        final ChunkJob job = decorator.capture(chunk, null);
+        final CompletableFuture<Void> planned = CompletableFuture
+            .runAsync(() -> {
+                    decorator.analyze(job);
+                    decorator.exclude(job);
+                    decorator.decorate(job);
+                }, workers);
+        final Running running = new Running(job, decorator, planned);
+        inFlight.put(key, running);
+        plugin.getTickets().add(job);
+        planned
+            .thenRunAsync(() -> {
+                    // Maybe finished early by finishNear
+                    if (job.applied) return;
+                    decorator.apply(job);
+                    job.applied = true;
+                }, mainThread)
+            .whenCompleteAsync((result, throwable) -> complete(key, running, throwable), mainThread);
+    }
+
+    /**
+     * Finish all jobs in flight around a chunk right now, waiting
+     * for their workers.
+     */
+    private void finishNear(World world, int x, int z) {
+        for (int dz = -1; dz <= 1; dz += 1) {
+            for (int dx = -1; dx <= 1; dx += 1) {
+                final Key key = new Key(world, x + dx, z + dz);
+                final Running running = inFlight.get(key);
+                if (running == null) continue;
+                final ChunkJob job = running.job();
+                Throwable error = null;
+                try {
+                    running.planned().join();
+                    if (!job.applied) {
+                        running.decorator().apply(job);
+                        job.applied = true;
+                    }
+                } catch (CompletionException ce) {
+                    error = ce.getCause();
+                } catch (RuntimeException re) {
+                    error = re;
+                }
+                complete(key, running, error);
+            }
+        }
+    }
+
+    /**
+     * Clean up after a job, unless that was done already, and retry
+     * the chunks deferred around it.
+     */
+    private void complete(Key key, Running running, Throwable throwable) {
+        if (!inFlight.remove(key, running)) return;
+        final ChunkJob job = running.job();
+        if (throwable != null) {
+            plugin.getLogger().log(Level.SEVERE, "Decorating chunk " + job.chunkX + "," + job.chunkZ, throwable);
+        }
+        plugin.getTickets().remove(job);
+        plugin.getLedger().finish(key.world(), key.x(), key.z(), throwable == null);
+        retryDeferred(key.world(), key.x(), key.z());
+    }
+
+    /**
+     * Submit the chunks deferred around a chunk which has left
+     * flight.  Those still next to one are deferred again.  Must be
+     * called on the main thread.
+     */
+    void retryDeferred(World world, int chunkX, int chunkZ) {
+        if (deferred.isEmpty()) return;
+        for (int dz = -1; dz <= 1; dz += 1) {
+            for (int dx = -1; dx <= 1; dx += 1) {
+                final Deferred it = deferred.remove(new Key(world, chunkX + dx, chunkZ + dz));
+                if (it == null) continue;
+                final Chunk chunk = it.chunk();
+                submit(it.decorator(), chunk);
+                plugin.getTickets().remove(world, chunk.getX(), chunk.getZ());
+            }
+        }
+    }
+
+    public int getInFlight() {
+        return inFlight.size();
+    }
+
+    public int getDeferred() {
+        return deferred.size();
+    }
+
+    /**
+     * Stop the workers and decorate all chunks which were not yet
+     * applied on the main thread, then the deferred ones.  Nothing of
+     * an unapplied job has been written, so it is safe to start
+     * over.  Applied jobs only wait for their cleanup, which is done
+     * here instead.
+     */
+    void shutdown() {
+        workers.shutdownNow();
+        final List<Running> list = new ArrayList<>(inFlight.values());
+        inFlight.clear();
+        for (Running running : list) {
+            final ChunkJob job = running.job();
+            if (!job.applied) {
+                Chunk chunk = job.view.getWorld().getChunkAt(job.chunkX, job.chunkZ);
+                running.decorator().transformChunk(chunk, job.forcedBiome);
+            }
+            plugin.getTickets().remove(job);
+            plugin.getLedger().finish(job.view.getWorld(), job.chunkX, job.chunkZ, true);
+        }
+        for (Deferred it : deferred.values()) {
+            final Chunk chunk = it.chunk();
+            if (plugin.getLedger().begin(chunk.getWorld(), chunk.getX(), chunk.getZ())) {
+                it.decorator().transformChunk(chunk, null);
+                plugin.getLedger().finish(chunk.getWorld(), chunk.getX(), chunk.getZ(), true);
+            }
+            plugin.getTickets().remove(chunk.getWorld(), chunk.getX(), chunk.getZ());
+        }
+        deferred.clear();
+    }
+}
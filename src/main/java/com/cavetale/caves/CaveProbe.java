@@ -0,0 +1,69 @@
+package com.cavetale.caves;
+
+import java.util.function.Predicate;
+import org.bukkit.Material;
+
+/**
+ * A quick look for caves before the full scan.  Every surface has
+ * an empty block at most two steps away, below the heightmap or
+ * next to a block which is: within the chunk, a border of one
+ * block around it, or two blocks straight out from its sides.
+ * Liquids alone expose nothing.  Chunks without such air, like
+ * solid rock or ocean floor under water, cannot hold surfaces.
+ * Below the world is void air, so blocks at the very bottom which
+ * are replaceable or inside count as well.
+ *
+ * Only every stride-th column in either direction is read, so a
+ * miss costs a fraction of a full scan, but caves narrower than the
+ * stride may be missed.  With a stride of 1, CaveDecorator asks the
+ * SectionMask instead, which is certain and which the scan goes on
+ * to use, rather than reading every column here as well.
+ */
+final class CaveProbe {
+    /**
+     * Blocks outside the chunk which may expose its surfaces.
+     */
+    private static final int REACH = 2;
+
+    private CaveProbe() { }
+
+    /**
+     * @param stride blocks between sampled columns
+     * @param empty blocks of air
+     * @param exposed blocks which the void below the world exposes
+     *   or passes through
+     * @return true if the chunk may hold surfaces
+     */
+    static boolean probe(Voxels voxels, SkyMap sky, int chunkX, int chunkZ, int stride,
+                         Predicate<Material> empty, Predicate<Material> exposed) {
+        final int offset = stride >> 1;
+        final int lo = voxels.getMinHeight();
+        final int ax = chunkX << 4;
+        final int az = chunkZ << 4;
+        for (int dz = -REACH; dz < 16 + REACH; dz += 1) {
+            if (Math.floorMod(dz - offset, stride) != 0) continue;
+            for (int dx = -REACH; dx < 16 + REACH; dx += 1) {
+                if (Math.floorMod(dx - offset, stride) != 0) continue;
+                final boolean farX = dx < -1 || dx > 16;
+                final boolean farZ = dz < -1 || dz > 16;
+                final int hi;
+                if (farX || farZ) {
+                    // Only reachable straight out from a side, next
+                    // to a block no higher than the heightmap
+                    if (farX && (dz < 0 || dz > 15) || farZ && (dx < 0 || dx > 15)) continue;
+                    final int nx = Math.max(-1, Math.min(16, dx));
+                    final int nz = Math.max(-1, Math.min(16, dz));
+                    hi = sky.getHeight(ax + nx, az + nz) + 1;
+                } else {
+                    hi = sky.getHeight(ax + dx, az + dz);
+                    if (exposed.test(voxels.getType(ax + dx, lo, az + dz))) return true;
+                }
+                final int top = Math.min(hi, voxels.getMaxHeight());
+                for (int y = lo; y < top; y += 1) {
+                    if (empty.test(voxels.getType(ax + dx, y, az + dz))) return true;
+                }
+            }
+        }
+        return false;
+    }
+}
@@ -1,6 +1,11 @@
 package com.cavetale.caves;
 
 import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
 import lombok.RequiredArgsConstructor;
 import org.bukkit.Chunk;
 import org.bukkit.World;
@@ -27,27 +32,166 @@ public final class CavesCommand implements CommandExecutor {
             Chunk chunk = player.getLocation().getChunk();
             World world = chunk.getWorld();
             Biomes.Type biome = args.length >= 1
-                ? Biomes.Type.valueOf(args[0].toUpperCase())
+                ? Biomes.Type.valueOf(args[0].toUpperCase(Locale.ROOT))
                 : null;
             int r = 1;
             if (args.length >= 2) {
                 r = Integer.parseInt(args[1]);
             }
-            plugin.getCaveDecorator(world).setForcedBiome(biome);
-            for (int z = chunk.getZ() - r; z <= chunk.getZ() + r; z += 1) {
-                for (int x = chunk.getX() - r; x <= chunk.getX() + r; x += 1) {
-                    plugin.getCaveDecorator(world)
-                        .transformChunk(world.getChunkAt(x, z));
-                }
+            long[] chunks = BulkJob.square(chunk.getX(), chunk.getZ(), r);
+            plugin.getBulkScheduler().submit(new BulkJob("test", sender, world, biome, chunks));
+            return true;
+        }
+        case "cancel": {
+            if (args.length != 0) return false;
+            int count = plugin.getBulkScheduler().cancel(job -> job.sender == sender);
+            sender.sendMessage(count == 0
+                               ? "You have no bulk jobs running"
+                               : count + " bulk jobs cancelled");
+            return true;
+        }
+        case "undo": {
+            if (args.length > 1) return false;
+            Player player = (Player) sender;
+            UndoJournal journal = plugin.getUndoJournal();
+            if (journal == null) {
+                sender.sendMessage("The undo journal is disabled, see undo.journal in config.yml");
+                return true;
+            }
+            Chunk chunk = player.getLocation().getChunk();
+            World world = chunk.getWorld();
+            int r = args.length >= 1 ? Integer.parseInt(args[0]) : 1;
+            journal.take(world, BulkJob.square(chunk.getX(), chunk.getZ(), r), undos -> {
+                    int blocks = 0;
+                    int kept = 0;
+                    Set<Long> chunks = new HashSet<>();
+                    for (UndoJournal.Undo undo : undos) {
+                        final int restored = UndoJournal.restore(world, undo);
+                        blocks += restored;
+                        kept += undo.keys().length - restored;
+                        chunks.add(BulkJob.chunkKey(undo.chunkX(), undo.chunkZ()));
+                        plugin.getLedger().forget(world, undo.chunkX(), undo.chunkZ());
+                    }
+                    sender.sendMessage(chunks.size() + " chunks undone, " + blocks + " blocks restored, "
+                                       + kept + " changed since and kept");
+                });
+            return true;
+        }
+        case "region": return onRegion(sender, args);
+        case "stats": {
+            if (args.length > 1) return false;
+            Metrics metrics = plugin.getMetrics();
+            if (args.length >= 1) {
+                if (!args[0].equals("reset")) return false;
+                metrics.reset();
+                sender.sendMessage("Stats reset");
+                return true;
+            }
+            for (String line : metrics.report()) {
+                sender.sendMessage(line);
+            }
+            sender.sendMessage(plugin.getPipeline().getInFlight() + " chunks in flight, "
+                               + plugin.getPipeline().getDeferred() + " deferred, "
+                               + plugin.getFeatureQueue().size() + " features queued");
+            return true;
+        }
+        case "reload": {
+            if (args.length != 0) return false;
+            List<String> errors = plugin.loadThemes();
+            if (errors.isEmpty()) {
+                sender.sendMessage("Themes reloaded");
+                return true;
+            }
+            for (String error : errors) {
+                sender.sendMessage("themes.yml: " + error);
+            }
+            sender.sendMessage("Themes NOT reloaded");
+            return true;
+        }
+        case "noise": {
+            if (args.length > 1) return false;
+            NoiseField.ErrorStats stats = plugin.getNoiseErrorStats();
+            if (stats == null) {
+                sender.sendMessage("Noise verification is disabled, see noise.verify in config.yml");
+                return true;
+            }
+            Map<Double, double[]> report = stats.report();
+            if (report.isEmpty()) {
+                sender.sendMessage("No interpolated noise sampled yet");
+            }
+            for (Map.Entry<Double, double[]> entry : report.entrySet()) {
+                double[] value = entry.getValue();
+                sender.sendMessage(String.format("Scale %.1f: max error %.4f, mean %.4f, %d samples",
+                                                 entry.getKey(), value[0], value[1], (long) value[2]));
+            }
+            if (args.length >= 1 && args[0].equals("reset")) {
+                stats.reset();
+                sender.sendMessage("Noise error reset");
             }
-            plugin.getCaveDecorator(world).setForcedBiome(null);
-            int count = 1 + 2 * r;
-            count *= count;
-            player.sendMessage(count + " chunks transformed: "
-                               + chunk.getX() + "," + chunk.getZ());
             return true;
         }
         default: return false;
         }
     }
+
+    /**
+     * /caves region rect <world> <x1> <z1> <x2> <z2> [order]
+     * /caves region files <world> [order] [file...]
+     * /caves region cancel <world>
+     */
+    private boolean onRegion(CommandSender sender, String[] args) {
+        if (args.length < 2) return false;
+        World world = plugin.getServer().getWorld(args[1]);
+        if (world == null) {
+            sender.sendMessage("World not found: " + args[1]);
+            return true;
+        }
+        final String name = RegionJob.nameOf(world);
+        if (args[0].equals("cancel")) {
+            if (args.length != 2) return false;
+            int count = plugin.getBulkScheduler().cancel(job -> job.name.equals(name));
+            sender.sendMessage(count == 0
+                               ? "No job running: " + name
+                               : "Cancelled: " + name);
+            return true;
+        }
+        for (BulkJob job : plugin.getBulkScheduler().getJobs()) {
+            if (job.name.equals(name) && !job.cancelled) {
+                sender.sendMessage("Already running: " + job.getProgress());
+                return true;
+            }
+        }
+        final List<int[]> areas;
+        final int orderIndex;
+        switch (args[0]) {
+        case "rect": {
+            if (args.length != 6 && args.length != 7) return false;
+            final int x1 = Integer.parseInt(args[2]);
+            final int z1 = Integer.parseInt(args[3]);
+            final int x2 = Integer.parseInt(args[4]);
+            final int z2 = Integer.parseInt(args[5]);
+            areas = List.of(new int[] {Math.min(x1, x2), Math.min(z1, z2), Math.max(x1, x2), Math.max(z1, z2)});
+            orderIndex = 6;
+            break;
+        }
+        case "files": {
+            List<String> files = args.length > 3
+                ? List.of(Arrays.copyOfRange(args, 3, args.length))
+                : List.of();
+            areas = RegionJob.regionAreas(world, files);
+            orderIndex = 2;
+            break;
+        }
+        default: return false;
+        }
+        ChunkOrder order = args.length > orderIndex
+            ? ChunkOrder.valueOf(args[orderIndex].toUpperCase(Locale.ROOT))
+            : ChunkOrder.SPIRAL;
+        if (areas.isEmpty()) {
+            sender.sendMessage("No region files found");
+            return true;
+        }
+        plugin.getBulkScheduler().submit(new RegionJob(plugin, sender, world, order, areas));
+        return true;
+    }
 }
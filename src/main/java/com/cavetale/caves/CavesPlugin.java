@@ -1,7 +1,16 @@
 package com.cavetale.caves;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.logging.Level;
 import lombok.Getter;
 import org.bukkit.World;
 import org.bukkit.plugin.java.JavaPlugin;
@@ -9,13 +18,74 @@ import org.bukkit.plugin.java.JavaPlugin;
 @Getter
 public final class CavesPlugin extends JavaPlugin {
     private Biomes biomes;
+    private MaterialTraits materialTraits;
+    private CavePipeline pipeline;
+    private BulkScheduler bulkScheduler;
+    private FeatureQueue featureQueue;
+    private UndoJournal undoJournal;
+    private final ChunkTickets tickets = new ChunkTickets(this);
+    private final ChunkLedger ledger = new ChunkLedger(this);
+    private CaveDecorator.Options decoratorOptions = CaveDecorator.Options.DEFAULTS;
+    private NoiseField.ErrorStats noiseErrorStats;
+    private volatile ThemeTable themes = ThemeTable.EMPTY;
+    private final Metrics metrics = new Metrics();
     private final Map<String, CaveDecorator> caves = new HashMap<>();
     private final CavesCommand command = new CavesCommand(this);
 
     @Override
     public void onEnable() {
+        saveDefaultConfig();
         biomes = new Biomes(getLogger());
         biomes.load();
+        final List<String> materialErrors = new ArrayList<>();
+        materialTraits = MaterialTraits.build(getConfig().getStringList("materials.replaceable"), materialErrors);
+        for (String error : materialErrors) {
+            getLogger().warning("materials.replaceable: " + error);
+        }
+        final CaveDecorator.Options defaults = CaveDecorator.Options.DEFAULTS;
+        decoratorOptions = defaults
+            .withNoiseLattice(getConfig().getBoolean("noise.lattice", defaults.noiseLattice()))
+            .withNoiseVector(getConfig().getBoolean("noise.vector", defaults.noiseVector()))
+            .withSkyFlood(getConfig().getBoolean("sky.flood", defaults.skyFlood()))
+            .withProbeStride(Math.min(16, Math.max(0, getConfig().getInt("probe.stride", defaults.probeStride()))));
+        if (decoratorOptions.noiseVector() && !BatchNoise.VECTOR_AVAILABLE) {
+            getLogger().info("noise.vector: Start the server with --add-modules jdk.incubator.vector"
+                             + " to batch noise on the Vector API");
+        }
+        noiseErrorStats = getConfig().getBoolean("noise.verify")
+            ? new NoiseField.ErrorStats()
+            : null;
+        for (String error : loadThemes()) {
+            getLogger().warning("themes.yml: " + error);
+        }
+        pipeline = new CavePipeline(this,
+                                    getConfig().getInt("pipeline.workers"),
+                                    getConfig().getInt("pipeline.max-in-flight"));
+        bulkScheduler = new BulkScheduler(this,
+                                          getConfig().getInt("bulk.tick-budget", 10),
+                                          getConfig().getInt("bulk.max-loading", 8),
+                                          getConfig().getInt("bulk.parallelism", 0));
+        featureQueue = new FeatureQueue(this,
+                                        getConfig().getInt("features.tick-budget", 5),
+                                        getConfig().getInt("features.per-chunk", 4),
+                                        getConfig().getInt("features.max-queued", 10000));
+        if (getConfig().getBoolean("undo.journal", true)) {
+            undoJournal = new UndoJournal(this);
+        }
+        RegionJob.resumeAll(this);
+        final int exportInterval = getConfig().getInt("metrics.export-interval", 0);
+        if (exportInterval > 0) {
+            final Path exportFile = getDataFolder().toPath()
+                .resolve(getConfig().getString("metrics.export-file", "metrics.txt"));
+            final long ticks = exportInterval * 20L;
+            getServer().getScheduler().runTaskTimerAsynchronously(this, () -> {
+                    try {
+                        metrics.exportTo(exportFile);
+                    } catch (IOException ioe) {
+                        getLogger().log(Level.SEVERE, "Exporting metrics to " + exportFile, ioe);
+                    }
+                }, ticks, ticks);
+        }
         if (getServer().getPluginManager().isPluginEnabled("Decorator")) {
             final EventListener listener = new EventListener(this);
             getServer().getPluginManager().registerEvents(listener, this);
@@ -25,6 +95,37 @@ public final class CavesPlugin extends JavaPlugin {
         getCommand("caves").setExecutor(command);
     }
 
+    @Override
+    public void onDisable() {
+        bulkScheduler.shutdown();
+        pipeline.shutdown();
+        featureQueue.shutdown();
+        if (undoJournal != null) undoJournal.shutdown();
+        ledger.shutdown();
+    }
+
+    /**
+     * Compile themes.yml and swap in the new table, unless it has
+     * errors.  Chunks being decorated keep the table they started
+     * with.  At startup, the table is used regardless, with the
+     * broken entries left out.
+     * @return the errors
+     */
+    List<String> loadThemes() {
+        final File file = new File(getDataFolder(), "themes.yml");
+        if (!file.exists()) saveResource("themes.yml", false);
+        final List<String> errors = new ArrayList<>();
+        final ThemeTable table;
+        try (Reader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+            table = ThemeTable.load(reader, errors);
+        } catch (IOException ioe) {
+            errors.add(ioe.getMessage());
+            return errors;
+        }
+        if (errors.isEmpty() || themes == ThemeTable.EMPTY) themes = table;
+        return errors;
+    }
+
     CaveDecorator getCaveDecorator(World world) {
         CaveDecorator result = caves.get(world.getName());
         if (result == null) {
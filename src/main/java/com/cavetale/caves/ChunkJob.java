@@ -0,0 +1,55 @@
+package com.cavetale.caves;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * One chunk on its way through the decorator.  It is captured on
+ * the main thread, analyzed and decorated by a worker, and applied
+ * on the main thread again.
+ *
+ * Offline jobs work on voxels without a view.  Their edits land in
+ * the voxels right away and there is nothing to apply.
+ */
+final class ChunkJob {
+    protected final int chunkX;
+    protected final int chunkZ;
+    protected final Voxels voxels;
+    /** The captured chunk, or null offline. */
+    protected final ChunkView view;
+    // Read by the worker for captured chunks
+    protected SkyMap sky;
+    protected final StructureMask structures;
+    protected final Biomes.Type forcedBiome;
+    protected final SurfaceIndex surfaces;
+    protected final NoiseField noise;
+    // Trees and huge mushrooms for the FeatureQueue
+    protected final List<FeatureQueue.Feature> features = new ArrayList<>();
+    protected Context context;
+    // Set once Core was asked for structures
+    protected boolean coreChecked;
+    // The blocks to be overwritten, for the UndoJournal
+    protected byte[] undo;
+    protected int blocksWritten;
+    // Set once the edits are in the world
+    protected boolean applied;
+
+    ChunkJob(final ChunkView view, final StructureMask structures,
+             final Biomes.Type forcedBiome, final NoiseField noise) {
+        this(view.getChunkX(), view.getChunkZ(), view, view, null, structures, forcedBiome, noise);
+    }
+
+    ChunkJob(final int chunkX, final int chunkZ, final Voxels voxels, final ChunkView view,
+             final SkyMap sky, final StructureMask structures,
+             final Biomes.Type forcedBiome, final NoiseField noise) {
+        this.chunkX = chunkX;
+        this.chunkZ = chunkZ;
+        this.voxels = voxels;
+        this.view = view;
+        this.sky = sky;
+        this.structures = structures;
+        this.forcedBiome = forcedBiome;
+        this.surfaces = new SurfaceIndex(chunkX, chunkZ, voxels.getMinHeight());
+        this.noise = noise;
+    }
+}
@@ -0,0 +1,156 @@
+package com.cavetale.caves;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import org.bukkit.World;
+
+/**
+ * Which chunks are decorated, so no chunk is decorated twice.  Each
+ * region of 32x32 chunks has a file of 1024 bits in the world
+ * folder, so the ledger travels with the world and its backups.
+ * Files are memory mapped, which makes checking and marking a chunk
+ * a single memory access.
+ *
+ * Chunks being decorated are in flight and may not be started
+ * again until they are finished.  Neither may their neighbors,
+ * since each chunk is captured and written with a border of one
+ * chunk.  Main thread only.
+ */
+final class ChunkLedger {
+    private static final int REGION_BYTES = 32 * 32 / 8;
+    private static final int MAX_MAPPED = 256;
+    private final CavesPlugin plugin;
+    private final Map<Key, MappedByteBuffer> regions = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, MappedByteBuffer> eldest) {
+                if (size() <= MAX_MAPPED) return false;
+                eldest.getValue().force();
+                return true;
+            }
+        };
+    private final Set<Key> inFlight = new HashSet<>();
+
+    /**
+     * A chunk, or a region.
+     */
+    private record Key(World world, int x, int z) { }
+
+    ChunkLedger(final CavesPlugin plugin) {
+        this.plugin = plugin;
+    }
+
+    static Path folderOf(World world) {
+        return world.getWorldFolder().toPath().resolve("caves");
+    }
+
+    /**
+     * The bits of a region, mapped on first use.
+     * @return the buffer, or null if the file cannot be mapped
+     */
+    private MappedByteBuffer region(World world, int chunkX, int chunkZ) {
+        final Key key = new Key(world, chunkX >> 5, chunkZ >> 5);
+        MappedByteBuffer result = regions.get(key);
+        if (result != null) return result;
+        final Path path = folderOf(world).resolve("r." + key.x() + "." + key.z() + ".bits");
+        try {
+            Files.createDirectories(path.getParent());
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE,
+                                                        StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                result = channel.map(FileChannel.MapMode.READ_WRITE, 0, REGION_BYTES);
+            }
+        } catch (IOException ioe) {
+            plugin.getLogger().log(Level.SEVERE, "Mapping " + path, ioe);
+            return null;
+        }
+        regions.put(key, result);
+        return result;
+    }
+
+    private static int bit(int chunkX, int chunkZ) {
+        return ((chunkZ & 31) << 5) | (chunkX & 31);
+    }
+
+    public boolean isDecorated(World world, int chunkX, int chunkZ) {
+        final MappedByteBuffer bits = region(world, chunkX, chunkZ);
+        if (bits == null) return false;
+        final int bit = bit(chunkX, chunkZ);
+        return (bits.get(bit >> 3) & (1 << (bit & 7))) != 0;
+    }
+
+    private void setDecorated(World world, int chunkX, int chunkZ, boolean value) {
+        final MappedByteBuffer bits = region(world, chunkX, chunkZ);
+        if (bits == null) return;
+        final int bit = bit(chunkX, chunkZ);
+        final int old = bits.get(bit >> 3);
+        bits.put(bit >> 3, (byte) (value ? old | (1 << (bit & 7)) : old & ~(1 << (bit & 7))));
+    }
+
+    public boolean isInFlight(World world, int chunkX, int chunkZ) {
+        return inFlight.contains(new Key(world, chunkX, chunkZ));
+    }
+
+    /**
+     * Tell if a chunk or any of its 8 neighbors is in flight.  Their
+     * snapshots overlap, so whichever is applied last would
+     * overwrite the edits of the other.
+     */
+    public boolean isNearInFlight(World world, int chunkX, int chunkZ) {
+        if (inFlight.isEmpty()) return false;
+        for (int dz = -1; dz <= 1; dz += 1) {
+            for (int dx = -1; dx <= 1; dx += 1) {
+                if (inFlight.contains(new Key(world, chunkX + dx, chunkZ + dz))) return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Start decorating a chunk, unless it is decorated or in flight.
+     * @return true if the chunk may be decorated
+     */
+    public boolean begin(World world, int chunkX, int chunkZ) {
+        if (isDecorated(world, chunkX, chunkZ)) return false;
+        return inFlight.add(new Key(world, chunkX, chunkZ));
+    }
+
+    /**
+     * Finish a chunk started with begin.
+     * @param success true if it was decorated, false if it can be
+     *   tried again
+     */
+    public void finish(World world, int chunkX, int chunkZ, boolean success) {
+        inFlight.remove(new Key(world, chunkX, chunkZ));
+        if (success) setDecorated(world, chunkX, chunkZ, true);
+    }
+
+    /**
+     * Forget that a chunk was decorated, once it is undone.
+     */
+    public void forget(World world, int chunkX, int chunkZ) {
+        setDecorated(world, chunkX, chunkZ, false);
+    }
+
+    /**
+     * Write all mapped regions to disk.
+     */
+    public void flush() {
+        for (MappedByteBuffer bits : regions.values()) {
+            bits.force();
+        }
+    }
+
+    public void shutdown() {
+        flush();
+        regions.clear();
+        inFlight.clear();
+    }
+}
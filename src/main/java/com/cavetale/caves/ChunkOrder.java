@@ -0,0 +1,88 @@
+package com.cavetale.caves;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Orders in which bulk jobs visit chunks.  Chunks are packed as in
+ * BulkJob.chunkKey.
+ */
+enum ChunkOrder {
+    /**
+     * Outward in square rings around the center, so the finished
+     * part is always one contiguous area.
+     */
+    SPIRAL,
+    /**
+     * Along the z-order curve, so chunks visited in a row are mostly
+     * close to each other and share region files.
+     */
+    MORTON;
+
+    /**
+     * Sort the chunks into this order.  The result only depends on
+     * the set of chunks, so the order can be repeated on resume.
+     */
+    long[] sort(long[] chunks) {
+        if (chunks.length == 0) return chunks;
+        int minX = Integer.MAX_VALUE;
+        int minZ = Integer.MAX_VALUE;
+        int maxX = Integer.MIN_VALUE;
+        int maxZ = Integer.MIN_VALUE;
+        for (long chunk : chunks) {
+            minX = Math.min(minX, BulkJob.chunkX(chunk));
+            minZ = Math.min(minZ, BulkJob.chunkZ(chunk));
+            maxX = Math.max(maxX, BulkJob.chunkX(chunk));
+            maxZ = Math.max(maxZ, BulkJob.chunkZ(chunk));
+        }
+        final long[] keys = new long[chunks.length];
+        for (int i = 0; i < chunks.length; i += 1) {
+            final int x = BulkJob.chunkX(chunks[i]);
+            final int z = BulkJob.chunkZ(chunks[i]);
+            keys[i] = switch (this) {
+            case SPIRAL -> spiral(x - ((minX + maxX) >> 1), z - ((minZ + maxZ) >> 1));
+            case MORTON -> spread(x - minX) | spread(z - minZ) << 1;
+            };
+        }
+        Integer[] indexes = new Integer[chunks.length];
+        for (int i = 0; i < indexes.length; i += 1) indexes[i] = i;
+        Arrays.sort(indexes, Comparator.comparingLong(i -> keys[i]));
+        long[] result = new long[chunks.length];
+        for (int i = 0; i < result.length; i += 1) {
+            result[i] = chunks[indexes[i]];
+        }
+        return result;
+    }
+
+    /**
+     * Ring around the center, then position along the ring,
+     * clockwise from the north west corner.
+     */
+    private static long spiral(int dx, int dz) {
+        final int r = Math.max(Math.abs(dx), Math.abs(dz));
+        final int t;
+        if (dz == -r) {
+            t = dx + r;
+        } else if (dx == r) {
+            t = 3 * r + dz;
+        } else if (dz == r) {
+            t = 5 * r - dx;
+        } else {
+            t = 7 * r - dz;
+        }
+        return (long) r << 32 | t;
+    }
+
+    /**
+     * Put a zero bit between each of the lower 31 bits.
+     */
+    private static long spread(int value) {
+        long v = value & 0x7FFFFFFFL;
+        v = (v | v << 16) & 0x0000FFFF0000FFFFL;
+        v = (v | v << 8) & 0x00FF00FF00FF00FFL;
+        v = (v | v << 4) & 0x0F0F0F0F0F0F0F0FL;
+        v = (v | v << 2) & 0x3333333333333333L;
+        v = (v | v << 1) & 0x5555555555555555L;
+        return v;
+    }
+}
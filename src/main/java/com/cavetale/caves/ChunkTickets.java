@@ -0,0 +1,62 @@
+package com.cavetale.caves;
+
+import java.util.HashMap;
+import java.util.Map;
+import lombok.RequiredArgsConstructor;
+import org.bukkit.World;
+
+/**
+ * Plugin chunk tickets, counted.  The server keeps at most one
+ * ticket per plugin and chunk, so everything in this plugin which
+ * keeps chunks loaded goes through here.  Main thread only.
+ */
+@RequiredArgsConstructor
+final class ChunkTickets {
+    private final CavesPlugin plugin;
+    private final Map<Key, Integer> counts = new HashMap<>();
+
+    private record Key(World world, int x, int z) { }
+
+    public void add(World world, int x, int z) {
+        if (counts.merge(new Key(world, x, z), 1, Integer::sum) == 1) {
+            world.addPluginChunkTicket(x, z, plugin);
+        }
+    }
+
+    /**
+     * Keep all chunks captured by the job loaded.
+     */
+    public void add(ChunkJob job) {
+        final World world = job.view.getWorld();
+        for (int dz = -1; dz <= 1; dz += 1) {
+            for (int dx = -1; dx <= 1; dx += 1) {
+                final int x = job.chunkX + dx;
+                final int z = job.chunkZ + dz;
+                if (job.view.isCaptured(x, z)) add(world, x, z);
+            }
+        }
+    }
+
+    public void remove(ChunkJob job) {
+        final World world = job.view.getWorld();
+        for (int dz = -1; dz <= 1; dz += 1) {
+            for (int dx = -1; dx <= 1; dx += 1) {
+                final int x = job.chunkX + dx;
+                final int z = job.chunkZ + dz;
+                if (job.view.isCaptured(x, z)) remove(world, x, z);
+            }
+        }
+    }
+
+    public void remove(World world, int x, int z) {
+        final Key key = new Key(world, x, z);
+        Integer count = counts.get(key);
+        if (count == null) return;
+        if (count > 1) {
+            counts.put(key, count - 1);
+        } else {
+            counts.remove(key);
+            world.removePluginChunkTicket(x, z, plugin);
+        }
+    }
+}
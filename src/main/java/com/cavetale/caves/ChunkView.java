@@ -0,0 +1,197 @@
+package com.cavetale.caves;
+
+import lombok.Getter;
+import org.bukkit.Chunk;
+import org.bukkit.ChunkSnapshot;
+import org.bukkit.Material;
+import org.bukkit.World;
+import org.bukkit.block.Biome;
+import org.bukkit.block.data.BlockData;
+
+/**
+ * Snapshot of a chunk and its loaded neighbors which is safe to
+ * read off the main thread.  Writes are recorded and shadow the
+ * snapshot until they get applied to the world.
+ *
+ * All coordinates are world coordinates.  Blocks in neighboring
+ * chunks which were not loaded at capture time read as bedrock, so
+ * nothing will be exposed or replaced there.
+ */
+final class ChunkView implements Voxels {
+    @Getter private final World world;
+    @Getter private final int chunkX;
+    @Getter private final int chunkZ;
+    @Getter private final int minHeight;
+    @Getter private final int maxHeight;
+    private final ChunkSnapshot[] snapshots = new ChunkSnapshot[9];
+    @Getter private final EditBuffer edits;
+
+    private ChunkView(final World world, final int chunkX, final int chunkZ) {
+        this.world = world;
+        this.chunkX = chunkX;
+        this.chunkZ = chunkZ;
+        this.minHeight = world.getMinHeight();
+        this.maxHeight = world.getMaxHeight();
+        this.edits = new EditBuffer(chunkX, chunkZ, minHeight);
+    }
+
+    /**
+     * Capture the chunk with biomes, plus its loaded
+     * neighbors, all with heightmaps.  Must be called on the main
+     * thread.
+     */
+    static ChunkView capture(Chunk chunk) {
+        ChunkView view = new ChunkView(chunk.getWorld(), chunk.getX(), chunk.getZ());
+        for (int dz = -1; dz <= 1; dz += 1) {
+            for (int dx = -1; dx <= 1; dx += 1) {
+                final int index = (dx + 1) + (dz + 1) * 3;
+                if (dx == 0 && dz == 0) {
+                    view.snapshots[index] = chunk.getChunkSnapshot(true, true, false);
+                } else if (view.world.isChunkLoaded(view.chunkX + dx, view.chunkZ + dz)) {
+                    view.snapshots[index] = view.world.getChunkAt(view.chunkX + dx, view.chunkZ + dz)
+                        .getChunkSnapshot(true, false, false);
+                }
+            }
+        }
+        return view;
+    }
+
+    private ChunkSnapshot getSnapshot(int x, int z) {
+        final int dx = (x >> 4) - chunkX;
+        final int dz = (z >> 4) - chunkZ;
+        if (dx < -1 || dx > 1 || dz < -1 || dz > 1) return null;
+        return snapshots[(dx + 1) + (dz + 1) * 3];
+    }
+
+    /**
+     * Check if the chunk at the given chunk coordinates was
+     * captured.
+     */
+    public boolean isCaptured(int x, int z) {
+        final int dx = x - chunkX;
+        final int dz = z - chunkZ;
+        if (dx < -1 || dx > 1 || dz < -1 || dz > 1) return false;
+        return snapshots[(dx + 1) + (dz + 1) * 3] != null;
+    }
+
+    @Override
+    public Material getType(int x, int y, int z) {
+        if (!edits.isEmpty()) {
+            BlockData edit = edits.get(key(x, y, z));
+            if (edit != null) return edit.getMaterial();
+        }
+        if (y < minHeight || y >= maxHeight) return Material.VOID_AIR;
+        ChunkSnapshot snapshot = getSnapshot(x, z);
+        if (snapshot == null) return Material.BEDROCK;
+        return snapshot.getBlockType(x & 15, y, z & 15);
+    }
+
+    @Override
+    public BlockData getBlockData(int x, int y, int z) {
+        if (!edits.isEmpty()) {
+            BlockData edit = edits.get(key(x, y, z));
+            if (edit != null) return edit;
+        }
+        if (y < minHeight || y >= maxHeight) return Blocks.of(Material.VOID_AIR);
+        ChunkSnapshot snapshot = getSnapshot(x, z);
+        if (snapshot == null) return Blocks.of(Material.BEDROCK);
+        return snapshot.getBlockData(x & 15, y, z & 15);
+    }
+
+    /**
+     * The block as it was captured, without edits.  The chunk must
+     * have been captured.
+     */
+    public BlockData getCaptured(int x, int y, int z) {
+        return getSnapshot(x, z).getBlockData(x & 15, y, z & 15);
+    }
+
+    /**
+     * The highest block of the MOTION_BLOCKING heightmap, as
+     * captured.  The chunk must have been captured.
+     */
+    public int getHighestBlockYAt(int x, int z) {
+        return getSnapshot(x, z).getHighestBlockYAt(x & 15, z & 15);
+    }
+
+    @Override
+    public boolean isSectionEmpty(int cx, int y, int cz) {
+        if (!edits.isEmpty() || y < minHeight || y >= maxHeight) return false;
+        final ChunkSnapshot snapshot = getSnapshot(cx << 4, cz << 4);
+        return snapshot != null && snapshot.isSectionEmpty((y - minHeight) >> 4);
+    }
+
+    /**
+     * Biome within the center chunk.
+     */
+    public Biome getBiome(int x, int y, int z) {
+        return snapshots[4].getBiome(x & 15, y, z & 15);
+    }
+
+    @Override
+    public void set(int x, int y, int z, BlockData data, boolean applyPhysics) {
+        if (y < minHeight || y >= maxHeight) return;
+        if (getSnapshot(x, z) == null) return;
+        edits.set(key(x, y, z), data, applyPhysics);
+    }
+
+    @Override
+    public int getWrites() {
+        return edits.getWrites();
+    }
+
+    /**
+     * Drop all edits which would leave the captured block as it is.
+     * Safe to call off the main thread.
+     */
+    public void dropNoops() {
+        for (int i = 0; i < edits.size(); i += 1) {
+            final BlockData data = edits.getData(i);
+            if (data == null || edits.getPhysics(i)) continue;
+            final long key = edits.getKey(i);
+            final int x = keyX(key);
+            final int y = keyY(key);
+            final int z = keyZ(key);
+            final ChunkSnapshot snapshot = getSnapshot(x, z);
+            // Compare the material first to avoid creating block data
+            if (snapshot.getBlockType(x & 15, y, z & 15) != data.getMaterial()) continue;
+            if (data.equals(snapshot.getBlockData(x & 15, y, z & 15))) {
+                edits.drop(i);
+            }
+        }
+    }
+
+    /**
+     * Write all remaining edits to the world, section by section.
+     * Must be called on the main thread.
+     * @return the number of blocks written
+     */
+    public int apply() {
+        final int[] order = edits.sweepOrder();
+        final WorldVoxels live = new WorldVoxels(world);
+        for (int index : order) {
+            final long key = edits.getKey(index);
+            live.set(keyX(key), keyY(key), keyZ(key), edits.getData(index), edits.getPhysics(index));
+        }
+        edits.clear();
+        return order.length;
+    }
+
+    public static long key(int x, int y, int z) {
+        return ((long) x & 0x3FFFFFFL) << 38
+            | ((long) z & 0x3FFFFFFL) << 12
+            | ((long) y & 0xFFFL);
+    }
+
+    public static int keyX(long key) {
+        return (int) (key >> 38);
+    }
+
+    public static int keyY(long key) {
+        return (int) (key << 52 >> 52);
+    }
+
+    public static int keyZ(long key) {
+        return (int) (key << 26 >> 38);
+    }
+}
@@ -0,0 +1,121 @@
+package com.cavetale.caves;
+
+import java.util.Arrays;
+
+/**
+ * Runs of inside blocks in every column of one chunk, recorded
+ * bottom up while the chunk is scanned.  The free height above a
+ * floor or below a ceiling becomes a lookup instead of a walk
+ * through the column.
+ *
+ * Each column is only recorded up to the top of its scan.  Callers
+ * asking beyond that have to look at the blocks themselves.
+ */
+final class ColumnRuns {
+    private final int originX;
+    private final int originZ;
+    // First run of each column, the last entry is the end
+    private final int[] offsets = new int[257];
+    // First y above the scanned part of each column
+    private final int[] tops = new int[256];
+    // Start and end (exclusive) of each run
+    private int[] starts = new int[256];
+    private int[] ends = new int[256];
+    private int size;
+    private int column = -1;
+
+    ColumnRuns(final int chunkX, final int chunkZ) {
+        this.originX = chunkX << 4;
+        this.originZ = chunkZ << 4;
+    }
+
+    private int column(int x, int z) {
+        return (z - originZ) << 4 | (x - originX);
+    }
+
+    /**
+     * Start recording a column.  Columns must be recorded in order
+     * of z, then x.
+     */
+    public void begin(int x, int z) {
+        column = column(x, z);
+        offsets[column] = size;
+    }
+
+    /**
+     * Record an inside block in the current column.  Must be called
+     * in ascending order of y.
+     */
+    public void add(int y) {
+        add(y, y + 1);
+    }
+
+    /**
+     * Record inside blocks from start to end (exclusive) in the
+     * current column.  Must be called in ascending order of y.
+     */
+    public void add(int start, int end) {
+        if (size > offsets[column] && ends[size - 1] == start) {
+            ends[size - 1] = end;
+            return;
+        }
+        if (size == starts.length) {
+            starts = Arrays.copyOf(starts, size * 2);
+            ends = Arrays.copyOf(ends, size * 2);
+        }
+        starts[size] = start;
+        ends[size] = end;
+        size += 1;
+    }
+
+    /**
+     * Finish the current column.
+     * @param top the first y which was not scanned
+     */
+    public void end(int top) {
+        tops[column] = top;
+        offsets[column + 1] = size;
+    }
+
+    public int getTop(int x, int z) {
+        return tops[column(x, z)];
+    }
+
+    /**
+     * Find the run containing y.
+     * @return the run index, or -1
+     */
+    private int find(int column, int y) {
+        int lo = offsets[column];
+        int hi = offsets[column + 1] - 1;
+        while (lo <= hi) {
+            final int mid = (lo + hi) >>> 1;
+            if (ends[mid] <= y) {
+                lo = mid + 1;
+            } else if (starts[mid] > y) {
+                hi = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Get the first y at or above the given one which is not inside,
+     * as far as recorded.
+     */
+    public int runEnd(int x, int y, int z) {
+        final int run = find(column(x, z), y);
+        return run < 0 ? y : ends[run];
+    }
+
+    /**
+     * Get the lowest y of the run of inside blocks containing the
+     * given one, or y + 1 if it is not inside.
+     */
+    public int runStart(int x, int y, int z) {
+        final int run = find(column(x, z), y);
+        return run < 0 ? y + 1 : starts[run];
+    }
+}
@@ -1,20 +1,52 @@
 package com.cavetale.caves;
 
-import java.util.EnumSet;
 import java.util.List;
-import java.util.Random;
-import java.util.Set;
 import lombok.RequiredArgsConstructor;
 import org.bukkit.block.BlockFace;
 
+/**
+ * Cursor over one surface of a SurfaceIndex.  A single instance is
+ * loaded with each surface of a chunk in turn.
+ */
 @RequiredArgsConstructor
 final class Context {
-    protected final List<Runnable> deferredActions;
-    protected final Random random;
-    protected Set<BlockFace> faces = EnumSet.noneOf(BlockFace.class);
+    protected final List<FeatureQueue.Feature> features;
+    protected final BlockRandom random;
+    protected final NoiseField noise;
+    protected int x;
+    protected int y;
+    protected int z;
+    protected int faces;
     protected int height;
     protected boolean floor;
     protected boolean ceiling;
     protected boolean wall;
     protected boolean horizontal;
+    protected Biomes.Type type;
+
+    protected Context load(SurfaceIndex surfaces, int index) {
+        final int info = surfaces.getInfo(index);
+        x = surfaces.getX(index);
+        y = surfaces.getY(index);
+        z = surfaces.getZ(index);
+        faces = info & SurfaceIndex.FACES;
+        height = SurfaceIndex.getHeight(info);
+        floor = (info & SurfaceIndex.FLOOR) != 0;
+        ceiling = (info & SurfaceIndex.CEILING) != 0;
+        wall = (info & SurfaceIndex.WALL) != 0;
+        horizontal = (info & SurfaceIndex.HORIZONTAL) != 0;
+        type = surfaces.getType(index);
+        return this;
+    }
+
+    /**
+     * A random number for the current block.
+     */
+    protected int nextInt(BlockRandom.Purpose purpose, int bound) {
+        return random.nextInt(x, y, z, purpose, bound);
+    }
+
+    protected boolean hasFace(BlockFace face) {
+        return (faces & SurfaceIndex.bit(face)) != 0;
+    }
 }
@@ -0,0 +1,154 @@
+package com.cavetale.caves;
+
+import java.util.Arrays;
+import lombok.Getter;
+import org.bukkit.block.data.BlockData;
+
+/**
+ * All block writes of one chunk job.  Only the last write to each
+ * position is kept.  Writes which would not change the block are
+ * dropped before applying, and the rest are visited in chunk and
+ * section order.
+ *
+ * Positions are ChunkView keys and must lie within the 3x3 chunks
+ * around the center chunk.
+ */
+final class EditBuffer {
+    private final int chunkX;
+    private final int chunkZ;
+    private final int minHeight;
+    private long[] keys = new long[256];
+    private BlockData[] values = new BlockData[256];
+    private boolean[] physics = new boolean[256];
+    private int size;
+    // Edit index + 1 by key hash, 0 means empty
+    private int[] table = new int[512];
+    /** Calls to set, including overwrites. */
+    @Getter private int writes;
+    /** Edits dropped because they would not change the block. */
+    @Getter private int noops;
+
+    EditBuffer(final int chunkX, final int chunkZ, final int minHeight) {
+        this.chunkX = chunkX;
+        this.chunkZ = chunkZ;
+        this.minHeight = minHeight;
+    }
+
+    private static int hash(long key) {
+        return (int) ((key * 0x9E3779B97F4A7C15L) >>> 32);
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Number of positions with an edit, dropped ones included.
+     */
+    public int size() {
+        return size;
+    }
+
+    private int indexOf(long key) {
+        final int mask = table.length - 1;
+        for (int slot = hash(key) & mask; table[slot] != 0; slot = (slot + 1) & mask) {
+            final int index = table[slot] - 1;
+            if (keys[index] == key) return index;
+        }
+        return -1;
+    }
+
+    /**
+     * Get the pending edit at the position, or null.
+     */
+    public BlockData get(long key) {
+        if (size == 0) return null;
+        final int index = indexOf(key);
+        return index < 0 ? null : values[index];
+    }
+
+    public void set(long key, BlockData data, boolean applyPhysics) {
+        writes += 1;
+        int index = indexOf(key);
+        if (index < 0) {
+            if (size == keys.length) {
+                keys = Arrays.copyOf(keys, size * 2);
+                values = Arrays.copyOf(values, size * 2);
+                physics = Arrays.copyOf(physics, size * 2);
+            }
+            if (size * 2 >= table.length) rehash(table.length * 2);
+            index = size++;
+            keys[index] = key;
+            insert(key, index);
+        }
+        values[index] = data;
+        physics[index] = applyPhysics;
+    }
+
+    private void insert(long key, int index) {
+        final int mask = table.length - 1;
+        int slot = hash(key) & mask;
+        while (table[slot] != 0) slot = (slot + 1) & mask;
+        table[slot] = index + 1;
+    }
+
+    private void rehash(int capacity) {
+        table = new int[capacity];
+        for (int i = 0; i < size; i += 1) insert(keys[i], i);
+    }
+
+    public long getKey(int index) {
+        return keys[index];
+    }
+
+    /**
+     * Get the edit, or null if it was dropped.
+     */
+    public BlockData getData(int index) {
+        return values[index];
+    }
+
+    public boolean getPhysics(int index) {
+        return physics[index];
+    }
+
+    /**
+     * Drop an edit which would not change anything.
+     */
+    public void drop(int index) {
+        if (values[index] == null) return;
+        values[index] = null;
+        noops += 1;
+    }
+
+    /**
+     * Edit indexes sorted by chunk, then section, then y, z and x,
+     * dropped edits excluded.
+     */
+    public int[] sweepOrder() {
+        long[] order = new long[size];
+        int count = 0;
+        for (int i = 0; i < size; i += 1) {
+            if (values[i] == null) continue;
+            final long key = keys[i];
+            final int x = ChunkView.keyX(key);
+            final int y = ChunkView.keyY(key);
+            final int z = ChunkView.keyZ(key);
+            final long chunk = ((z >> 4) - chunkZ + 1) * 3 + ((x >> 4) - chunkX + 1);
+            final long sort = chunk << 20 | (long) (y - minHeight) << 8 | (z & 15) << 4 | (x & 15);
+            order[count++] = sort << 32 | i;
+        }
+        Arrays.sort(order, 0, count);
+        int[] result = new int[count];
+        for (int i = 0; i < count; i += 1) {
+            result[i] = (int) order[i];
+        }
+        return result;
+    }
+
+    public void clear() {
+        Arrays.fill(values, 0, size, null);
+        Arrays.fill(table, 0);
+        size = 0;
+    }
+}
@@ -17,8 +17,8 @@ public final class EventListener implements Listener {
         if (event.getPass() != 2) return;
         Chunk chunk = event.getChunk();
         World world = chunk.getWorld();
-        if (world.getEnvironment() == World.Environment.NORMAL) {
-            plugin.getCaveDecorator(world).onChunkDecorate(chunk);
-        }
+        if (world.getEnvironment() != World.Environment.NORMAL) return;
+        if (plugin.getLedger().isDecorated(world, chunk.getX(), chunk.getZ())) return;
+        plugin.getCaveDecorator(world).onChunkDecorate(chunk);
     }
 }
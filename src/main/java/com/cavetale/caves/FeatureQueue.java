@@ -0,0 +1,182 @@
+package com.cavetale.caves;
+
+import java.util.ArrayDeque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.Random;
+import java.util.Set;
+import org.bukkit.Location;
+import org.bukkit.Material;
+import org.bukkit.TreeType;
+import org.bukkit.World;
+import org.bukkit.block.data.BlockData;
+import org.bukkit.scheduler.BukkitTask;
+
+/**
+ * Grow trees and huge mushrooms a few per tick, instead of all at
+ * once when their chunk is applied.  Each chunk may queue only so
+ * many; the rest get their fallback block right away.  A position
+ * is only queued once, so decorating a chunk again does not double
+ * its features.  Main thread only.
+ *
+ * With the UndoJournal on, the blocks of each feature and fallback
+ * are journaled under the chunk of its position, so undoing that
+ * chunk removes them as well.
+ */
+final class FeatureQueue {
+    private final CavesPlugin plugin;
+    private final long budget;
+    private final int perChunk;
+    private final int maxQueued;
+    private final Queue<Entry> queue = new ArrayDeque<>();
+    private final Set<Key> queued = new HashSet<>();
+    private BukkitTask task;
+
+    /**
+     * Something large to grow at a position, or else the fallback
+     * block.
+     */
+    record Feature(int x, int y, int z, TreeType tree, Material fallback, Biomes.Type type) { }
+
+    private record Entry(World world, Feature feature) { }
+
+    private record Key(World world, long position) { }
+
+    /**
+     * @param budgetMillis the time per tick
+     * @param perChunk the features queued per chunk
+     * @param maxQueued the features queued in total
+     */
+    FeatureQueue(final CavesPlugin plugin, final int budgetMillis, final int perChunk, final int maxQueued) {
+        this.plugin = plugin;
+        this.budget = Math.max(1, budgetMillis) * 1_000_000L;
+        this.perChunk = Math.max(0, perChunk);
+        this.maxQueued = Math.max(0, maxQueued);
+    }
+
+    public int size() {
+        return queue.size();
+    }
+
+    /**
+     * Queue the features of one chunk.
+     */
+    public void submit(World world, List<Feature> features) {
+        final UndoJournal.Changes changes = features.isEmpty() || plugin.getUndoJournal() == null
+            ? null
+            : new UndoJournal.Changes(features.get(0).x() >> 4, features.get(0).z() >> 4);
+        int count = 0;
+        for (Feature feature : features) {
+            final Key key = new Key(world, ChunkView.key(feature.x(), feature.y(), feature.z()));
+            if (queued.contains(key)) {
+                plugin.getMetrics().add(Metrics.Count.TREES_DUPLICATE, feature.type(), 1);
+                continue;
+            }
+            if (count >= perChunk || queue.size() >= maxQueued) {
+                plugin.getMetrics().add(Metrics.Count.TREES_CAPPED, feature.type(), 1);
+                fallback(world, feature, changes);
+                continue;
+            }
+            count += 1;
+            queued.add(key);
+            queue.add(new Entry(world, feature));
+        }
+        journal(world, changes);
+        if (task == null && !queue.isEmpty()) {
+            task = plugin.getServer().getScheduler().runTaskTimer(plugin, this::tick, 1L, 1L);
+        }
+    }
+
+    private void tick() {
+        final long deadline = System.nanoTime() + budget;
+        do {
+            Entry entry = queue.poll();
+            if (entry == null) break;
+            final Feature feature = entry.feature();
+            queued.remove(new Key(entry.world(), ChunkView.key(feature.x(), feature.y(), feature.z())));
+            final long start = System.nanoTime();
+            grow(entry.world(), feature);
+            plugin.getMetrics().record(Metrics.Phase.DEFERRED, System.nanoTime() - start);
+        } while (System.nanoTime() < deadline);
+        if (queue.isEmpty()) {
+            task.cancel();
+            task = null;
+        }
+    }
+
+    private void grow(World world, Feature feature) {
+        final Metrics metrics = plugin.getMetrics();
+        if (!world.isChunkLoaded(feature.x() >> 4, feature.z() >> 4)) {
+            // Growing would load chunks
+            metrics.add(Metrics.Count.TREES_DROPPED, feature.type(), 1);
+            return;
+        }
+        if (!world.getType(feature.x(), feature.y(), feature.z()).isAir()) {
+            // Something else took the spot meanwhile
+            metrics.add(Metrics.Count.TREES_DROPPED, feature.type(), 1);
+            return;
+        }
+        metrics.add(Metrics.Count.TREES, feature.type(), 1);
+        final UndoJournal.Changes changes = plugin.getUndoJournal() != null
+            ? new UndoJournal.Changes(feature.x() >> 4, feature.z() >> 4)
+            : null;
+        final Location location = new Location(world, feature.x(), feature.y(), feature.z());
+        final Random random = new Random(world.getSeed() ^ ChunkView.key(feature.x(), feature.y(), feature.z()));
+        // Each state is handed over right before it is placed
+        final boolean grown = world.generateTree(location, random, feature.tree(), state -> {
+                if (changes == null) return;
+                changes.add(state.getX(), state.getY(), state.getZ(),
+                            world.getBlockData(state.getX(), state.getY(), state.getZ()),
+                            state.getBlockData());
+            });
+        if (!grown) {
+            metrics.add(Metrics.Count.TREES_FAILED, feature.type(), 1);
+            fallback(world, feature, changes);
+        }
+        journal(world, changes);
+    }
+
+    /**
+     * @param changes where to record the block, or null
+     */
+    private void fallback(World world, Feature feature, UndoJournal.Changes changes) {
+        final WorldVoxels live = new WorldVoxels(world);
+        final BlockData data = Blocks.of(feature.fallback());
+        if (changes != null) {
+            changes.add(feature.x(), feature.y(), feature.z(),
+                        live.getBlockData(feature.x(), feature.y(), feature.z()), data);
+        }
+        live.set(feature.x(), feature.y(), feature.z(), data);
+    }
+
+    private void journal(World world, UndoJournal.Changes changes) {
+        if (changes == null) return;
+        final byte[] record = changes.encode(world);
+        if (record != null) {
+            plugin.getUndoJournal().append(world, changes.getChunkX(), changes.getChunkZ(), record);
+        }
+    }
+
+    /**
+     * Give every queued feature its fallback block, which is cheap,
+     * and stop.
+     */
+    public void shutdown() {
+        for (Entry entry : queue) {
+            if (entry.world().isChunkLoaded(entry.feature().x() >> 4, entry.feature().z() >> 4)) {
+                final UndoJournal.Changes changes = plugin.getUndoJournal() != null
+                    ? new UndoJournal.Changes(entry.feature().x() >> 4, entry.feature().z() >> 4)
+                    : null;
+                fallback(entry.world(), entry.feature(), changes);
+                journal(entry.world(), changes);
+            }
+        }
+        queue.clear();
+        queued.clear();
+        if (task != null) {
+            task.cancel();
+            task = null;
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package com.cavetale.caves;
+
+import java.util.Arrays;
+
+/**
+ * Set of packed positions.  Elements are kept in a dense array, so
+ * they can be picked by index, and found through an open addressing
+ * table.  Removal swaps the last element into the gap, which makes
+ * every operation constant time but changes the order.
+ */
+final class LongSet {
+    private long[] keys;
+    private int size;
+    // Element index + 1 by key hash, 0 means empty
+    private int[] table;
+
+    LongSet(final int expected) {
+        int capacity = 16;
+        while (capacity < expected * 2) capacity <<= 1;
+        this.keys = new long[capacity >> 1];
+        this.table = new int[capacity];
+    }
+
+    private static int hash(long key) {
+        return (int) ((key * 0x9E3779B97F4A7C15L) >>> 32);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public long get(int index) {
+        return keys[index];
+    }
+
+    private int slotOf(long key) {
+        final int mask = table.length - 1;
+        for (int slot = hash(key) & mask; table[slot] != 0; slot = (slot + 1) & mask) {
+            if (keys[table[slot] - 1] == key) return slot;
+        }
+        return -1;
+    }
+
+    public boolean contains(long key) {
+        return size > 0 && slotOf(key) >= 0;
+    }
+
+    /**
+     * @return true if the key was added, false if it was present
+     */
+    public boolean add(long key) {
+        if (slotOf(key) >= 0) return false;
+        if (size == keys.length) keys = Arrays.copyOf(keys, size * 2);
+        if (size * 2 >= table.length) rehash(table.length * 2);
+        keys[size] = key;
+        insert(key, size);
+        size += 1;
+        return true;
+    }
+
+    private void insert(long key, int index) {
+        final int mask = table.length - 1;
+        int slot = hash(key) & mask;
+        while (table[slot] != 0) slot = (slot + 1) & mask;
+        table[slot] = index + 1;
+    }
+
+    private void rehash(int capacity) {
+        table = new int[capacity];
+        for (int i = 0; i < size; i += 1) insert(keys[i], i);
+    }
+
+    /**
+     * @return true if the key was removed, false if it was absent
+     */
+    public boolean remove(long key) {
+        if (size == 0) return false;
+        final int slot = slotOf(key);
+        if (slot < 0) return false;
+        removeSlot(slot);
+        return true;
+    }
+
+    /**
+     * Remove the element at the index and return it.  The last
+     * element takes its place.
+     */
+    public long removeAt(int index) {
+        final long key = keys[index];
+        removeSlot(slotOf(key));
+        return key;
+    }
+
+    private void removeSlot(int slot) {
+        final int index = table[slot] - 1;
+        final int mask = table.length - 1;
+        // Shift back the entries of the probe sequence behind the
+        // gap, so lookups never stop early.
+        int gap = slot;
+        for (int next = (gap + 1) & mask; table[next] != 0; next = (next + 1) & mask) {
+            final int ideal = hash(keys[table[next] - 1]) & mask;
+            if (((next - ideal) & mask) >= ((next - gap) & mask)) {
+                table[gap] = table[next];
+                gap = next;
+            }
+        }
+        table[gap] = 0;
+        size -= 1;
+        if (index != size) {
+            final long last = keys[size];
+            keys[index] = last;
+            table[slotOf(last)] = index + 1;
+        }
+    }
+
+    public void clear() {
+        Arrays.fill(table, 0);
+        size = 0;
+    }
+}
@@ -0,0 +1,103 @@
+package com.cavetale.caves;
+
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import org.bukkit.Material;
+import org.bukkit.Tag;
+
+/**
+ * What the scan asks about every block it reads, as one bitset per
+ * trait indexed by material ordinal.  Each check is a single bit
+ * test instead of a switch or a chain of tag lookups.  Built once
+ * on enable, immutable after.
+ *
+ * - REPLACEABLE: caves may decorate it
+ * - INSIDE: exposes surfaces, such as air, liquids, fences, flowers,
+ *   crops and rails
+ * - EMPTY: air of any kind
+ *
+ * No material is both replaceable and inside.
+ */
+final class MaterialTraits {
+    private static final Set<Material> REPLACEABLE = EnumSet.of(Material.STONE,
+                                                                Material.ANDESITE,
+                                                                Material.DIORITE,
+                                                                Material.GRANITE,
+                                                                Material.DIRT,
+                                                                Material.GRAVEL,
+                                                                Material.COAL_ORE,
+                                                                Material.IRON_ORE,
+                                                                Material.DEEPSLATE_COAL_ORE,
+                                                                Material.DEEPSLATE_IRON_ORE,
+                                                                Material.DEEPSLATE,
+                                                                Material.TUFF);
+    private final long[] replaceable;
+    private final long[] inside;
+    private final long[] empty;
+
+    private MaterialTraits(final int size) {
+        this.replaceable = new long[(size + 63) >> 6];
+        this.inside = new long[(size + 63) >> 6];
+        this.empty = new long[(size + 63) >> 6];
+    }
+
+    /**
+     * Compute the traits of all materials.  Tags must be available,
+     * so the server must be running.
+     * @param extraReplaceable names of materials which are
+     *   replaceable on top of the built-in ones
+     * @param errors where to report names which are not blocks, or
+     *   are inside
+     */
+    static MaterialTraits build(List<String> extraReplaceable, List<String> errors) {
+        final Material[] materials = Material.values();
+        final MaterialTraits result = new MaterialTraits(materials.length);
+        for (Material mat : materials) {
+            if (mat.isLegacy()) continue;
+            if (mat.isAir()) set(result.empty, mat);
+            if (computeInside(mat)) set(result.inside, mat);
+            if (REPLACEABLE.contains(mat)) set(result.replaceable, mat);
+        }
+        for (String name : extraReplaceable) {
+            final Material mat = Material.matchMaterial(name);
+            if (mat == null || mat.isLegacy() || !mat.isBlock()) {
+                errors.add("Not a block: " + name);
+            } else if (has(result.inside, mat)) {
+                errors.add("Cannot replace " + name + ", it exposes surfaces");
+            } else {
+                set(result.replaceable, mat);
+            }
+        }
+        return result;
+    }
+
+    private static boolean computeInside(Material mat) {
+        if (mat.isAir() || mat == Material.WATER || mat == Material.LAVA) return true;
+        if (Tag.FENCES.isTagged(mat)) return true;
+        if (Tag.FLOWERS.isTagged(mat)) return true;
+        if (Tag.CROPS.isTagged(mat)) return true;
+        if (Tag.RAILS.isTagged(mat)) return true;
+        return false;
+    }
+
+    private static void set(long[] bits, Material mat) {
+        bits[mat.ordinal() >> 6] |= 1L << mat.ordinal();
+    }
+
+    private static boolean has(long[] bits, Material mat) {
+        return (bits[mat.ordinal() >> 6] & (1L << mat.ordinal())) != 0L;
+    }
+
+    public boolean canReplace(Material mat) {
+        return has(replaceable, mat);
+    }
+
+    public boolean isInside(Material mat) {
+        return has(inside, mat);
+    }
+
+    public boolean isEmpty(Material mat) {
+        return has(empty, mat);
+    }
+}
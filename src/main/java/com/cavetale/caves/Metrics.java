@@ -0,0 +1,278 @@
+package com.cavetale.caves;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * What decorating costs and what it does, recorded without locks
+ * from workers and the main thread alike.  Phases are timed per
+ * chunk into histograms, results are counted by Biomes.Type.
+ *
+ * Reset is not atomic with concurrent recording, so a reset while
+ * chunks are in flight may keep a few of their numbers.
+ */
+final class Metrics {
+    private static final Biomes.Type[] TYPES = Biomes.Type.values();
+    /** Slot for things which happen outside any decorated biome. */
+    static final int NO_TYPE = TYPES.length;
+    private static final int SLOTS = TYPES.length + 1;
+
+    enum Phase {
+        // With a stride of 1, this includes the sections of the scan
+        PROBE,
+        SCAN,
+        CLASSIFY,
+        ORES,
+        // Asking Core for structures, main thread
+        STRUCTURES,
+        THEMES,
+        APPLY,
+        DEFERRED;
+
+        final String key = name().toLowerCase(Locale.ROOT);
+    }
+
+    enum Count {
+        SURFACES,
+        WRITES,
+        VEINS,
+        TREES,
+        TREES_FAILED,
+        // Queued already, over the chunk or queue limit, or gone
+        // by the time it was their turn
+        TREES_DUPLICATE,
+        TREES_CAPPED,
+        TREES_DROPPED,
+        // Sections of 16x16x16 blocks looked at, or culled without
+        SECTIONS_SCANNED,
+        SECTIONS_CULLED,
+        // Chunks the probe found caves in, or skipped
+        PROBE_HITS,
+        PROBE_MISSES;
+
+        final String key = name().toLowerCase(Locale.ROOT);
+    }
+
+    private final Histogram[] phases = new Histogram[Phase.values().length];
+    // Count ordinal * SLOTS + type slot
+    private final AtomicLongArray counts = new AtomicLongArray(Count.values().length * SLOTS);
+    private final LongAdder chunks = new LongAdder();
+    private volatile long startTime = System.nanoTime();
+
+    Metrics() {
+        for (int i = 0; i < phases.length; i += 1) {
+            phases[i] = new Histogram();
+        }
+    }
+
+    static int slot(Biomes.Type type) {
+        return type != null ? type.ordinal() : NO_TYPE;
+    }
+
+    public void record(Phase phase, long nanos) {
+        phases[phase.ordinal()].record(nanos);
+    }
+
+    public void add(Count count, Biomes.Type type, long amount) {
+        if (amount == 0) return;
+        counts.addAndGet(count.ordinal() * SLOTS + slot(type), amount);
+    }
+
+    /**
+     * Add counts by type slot, as collected for one chunk.
+     */
+    public void add(Count count, int[] bySlot) {
+        for (int i = 0; i < SLOTS; i += 1) {
+            if (bySlot[i] != 0) counts.addAndGet(count.ordinal() * SLOTS + i, bySlot[i]);
+        }
+    }
+
+    public void chunkDone() {
+        chunks.increment();
+    }
+
+    public long get(Count count, int slot) {
+        return counts.get(count.ordinal() * SLOTS + slot);
+    }
+
+    public Histogram get(Phase phase) {
+        return phases[phase.ordinal()];
+    }
+
+    public void reset() {
+        for (Histogram histogram : phases) histogram.reset();
+        for (int i = 0; i < counts.length(); i += 1) counts.set(i, 0L);
+        chunks.reset();
+        startTime = System.nanoTime();
+    }
+
+    public double getSeconds() {
+        return (double) (System.nanoTime() - startTime) / 1e9;
+    }
+
+    public long getChunks() {
+        return chunks.sum();
+    }
+
+    public double getChunksPerSecond() {
+        final double seconds = getSeconds();
+        return seconds > 0.0 ? (double) chunks.sum() / seconds : 0.0;
+    }
+
+    private static String slotName(int slot) {
+        return slot == NO_TYPE ? "none" : TYPES[slot].name().toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Human readable summary for /caves stats.
+     */
+    public List<String> report() {
+        List<String> result = new ArrayList<>();
+        result.add(String.format(Locale.ROOT, "%d chunks in %.0fs, %.2f chunks/s",
+                                 getChunks(), getSeconds(), getChunksPerSecond()));
+        final long probeHits = get(Count.PROBE_HITS, NO_TYPE);
+        final long probes = probeHits + get(Count.PROBE_MISSES, NO_TYPE);
+        if (probes > 0) {
+            result.add(String.format(Locale.ROOT, "probe: %d chunks, %.1f%% hit, %.1f%% skipped",
+                                     probes, 100.0 * probeHits / probes, 100.0 * (probes - probeHits) / probes));
+        }
+        for (Phase phase : Phase.values()) {
+            final Histogram histogram = get(phase);
+            if (histogram.getCount() == 0) continue;
+            result.add(String.format(Locale.ROOT, "%s: %d, mean %.2fms, p50 %.2fms, p95 %.2fms, p99 %.2fms",
+                                     phase.key, histogram.getCount(),
+                                     histogram.getMean() / 1e6,
+                                     histogram.getPercentile(0.50) / 1e6,
+                                     histogram.getPercentile(0.95) / 1e6,
+                                     histogram.getPercentile(0.99) / 1e6));
+        }
+        for (int slot = 0; slot < SLOTS; slot += 1) {
+            StringBuilder sb = new StringBuilder(slotName(slot)).append(':');
+            boolean any = false;
+            for (Count count : Count.values()) {
+                final long value = get(count, slot);
+                if (value == 0) continue;
+                sb.append(' ').append(count.key).append(' ').append(value);
+                any = true;
+            }
+            if (any) result.add(sb.toString());
+        }
+        return result;
+    }
+
+    /**
+     * Plain text for dashboards, one "name value" pair per line.
+     * Times are in microseconds.
+     */
+    public List<String> export() {
+        List<String> result = new ArrayList<>();
+        result.add("caves_chunks " + getChunks());
+        result.add("caves_seconds " + (long) getSeconds());
+        result.add(String.format(Locale.ROOT, "caves_chunks_per_second %.3f", getChunksPerSecond()));
+        for (Phase phase : Phase.values()) {
+            final Histogram histogram = get(phase);
+            final String prefix = "caves_phase_" + phase.key;
+            result.add(prefix + "_count " + histogram.getCount());
+            result.add(prefix + "_sum_us " + histogram.getSum() / 1000L);
+            result.add(prefix + "_p50_us " + histogram.getPercentile(0.50) / 1000L);
+            result.add(prefix + "_p95_us " + histogram.getPercentile(0.95) / 1000L);
+            result.add(prefix + "_p99_us " + histogram.getPercentile(0.99) / 1000L);
+        }
+        for (Count count : Count.values()) {
+            for (int slot = 0; slot < SLOTS; slot += 1) {
+                result.add("caves_" + count.key + "_" + slotName(slot) + " " + get(count, slot));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Replace the file with the export.  Safe to call off the main
+     * thread.
+     */
+    public void exportTo(Path file) throws IOException {
+        Files.createDirectories(file.getParent());
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        Files.write(tmp, export(), StandardCharsets.UTF_8);
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Log-linear histogram of non-negative values.  Each power of
+     * two is split into 8 buckets, so percentiles are within 12.5%.
+     */
+    static final class Histogram {
+        private static final int SUB_BITS = 3;
+        private static final int SUB_MASK = (1 << SUB_BITS) - 1;
+        private final AtomicLongArray buckets = new AtomicLongArray((64 - SUB_BITS) << SUB_BITS);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sum = new LongAdder();
+
+        static int bucket(long value) {
+            if (value <= SUB_MASK) return (int) Math.max(0L, value);
+            final int exponent = 63 - Long.numberOfLeadingZeros(value);
+            final int mantissa = (int) (value >>> (exponent - SUB_BITS)) & SUB_MASK;
+            return (exponent - SUB_BITS + 1) << SUB_BITS | mantissa;
+        }
+
+        static long lowerBound(int bucket) {
+            if (bucket <= SUB_MASK) return bucket;
+            final int exponent = (bucket >> SUB_BITS) + SUB_BITS - 1;
+            return (long) (1 << SUB_BITS | bucket & SUB_MASK) << (exponent - SUB_BITS);
+        }
+
+        public void record(long value) {
+            buckets.incrementAndGet(bucket(value));
+            count.increment();
+            sum.add(value);
+        }
+
+        public long getCount() {
+            return count.sum();
+        }
+
+        public long getSum() {
+            return sum.sum();
+        }
+
+        public double getMean() {
+            final long n = count.sum();
+            return n == 0 ? 0.0 : (double) sum.sum() / (double) n;
+        }
+
+        /**
+         * The middle of the bucket holding the given fraction of
+         * all values, or 0 if empty.
+         */
+        public long getPercentile(double fraction) {
+            long total = 0;
+            for (int i = 0; i < buckets.length(); i += 1) total += buckets.get(i);
+            if (total == 0) return 0;
+            final long rank = Math.max(1L, (long) Math.ceil(fraction * (double) total));
+            long seen = 0;
+            for (int i = 0; i < buckets.length(); i += 1) {
+                seen += buckets.get(i);
+                if (seen >= rank) {
+                    final long lo = lowerBound(i);
+                    final long hi = i + 1 < buckets.length() ? lowerBound(i + 1) : Long.MAX_VALUE;
+                    return lo + (hi - lo) / 2;
+                }
+            }
+            return lowerBound(buckets.length() - 1);
+        }
+
+        public void reset() {
+            for (int i = 0; i < buckets.length(); i += 1) buckets.set(i, 0L);
+            count.reset();
+            sum.reset();
+        }
+    }
+}
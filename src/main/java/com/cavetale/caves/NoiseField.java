@@ -0,0 +1,254 @@
+package com.cavetale.caves;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.DoubleAccumulator;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Noise of one chunk.  Coarse scales are evaluated once on a
+ * lattice around the chunk and trilinearly interpolated in between.
+ * Every lookup goes through a small direct mapped memo first, since
+ * the themes tend to ask for the same block and scale repeatedly.
+ * With a vector generator, lattice layers are evaluated as one
+ * batch each.
+ *
+ * Not thread safe.  Each chunk job has its own field.
+ */
+final class NoiseField {
+    /**
+     * Scales below this are always evaluated exactly.
+     */
+    static final double MIN_LATTICE_SCALE = 8.0;
+    /**
+     * Lattice points are spaced by a quarter of the scale, at most
+     * this many blocks.
+     */
+    private static final int MAX_STEP = 16;
+    /**
+     * Blocks covered by the lattice beyond the chunk borders.
+     */
+    private static final int MARGIN = 4;
+    private static final int MEMO_BITS = 12;
+    private final BatchNoise generator;
+    private final boolean lattice;
+    private final ErrorStats errorStats;
+    private final int originX;
+    private final int originZ;
+    private final int minHeight;
+    private final int maxHeight;
+    private Lattice[] lattices = new Lattice[0];
+    private final long[] memoKeys = new long[1 << MEMO_BITS];
+    private final double[] memoScales = new double[1 << MEMO_BITS];
+    private final double[] memoValues = new double[1 << MEMO_BITS];
+    // Coordinates and results of batches
+    private double[] batchX = new double[0];
+    private double[] batchY = new double[0];
+    private double[] batchZ = new double[0];
+    private double[] batchOut = new double[0];
+
+    /**
+     * @param lattice true to interpolate coarse scales, false to
+     *   always evaluate exactly
+     * @param errorStats where to record the interpolation error, or
+     *   null
+     */
+    NoiseField(final BatchNoise generator, final int chunkX, final int chunkZ,
+               final Voxels voxels, final boolean lattice, final ErrorStats errorStats) {
+        this.generator = generator;
+        this.lattice = lattice;
+        this.errorStats = errorStats;
+        this.originX = chunkX << 4;
+        this.originZ = chunkZ << 4;
+        this.minHeight = voxels.getMinHeight();
+        this.maxHeight = voxels.getMaxHeight();
+    }
+
+    public double get(int x, int y, int z, double scale) {
+        final long key = ChunkView.key(x, y, z);
+        long hash = (key ^ Double.doubleToLongBits(scale)) * 0x9E3779B97F4A7C15L;
+        final int slot = (int) (hash >>> (64 - MEMO_BITS));
+        if (memoScales[slot] == scale && memoKeys[slot] == key) {
+            return memoValues[slot];
+        }
+        final double result = compute(x, y, z, scale);
+        memoKeys[slot] = key;
+        memoScales[slot] = scale;
+        memoValues[slot] = result;
+        return result;
+    }
+
+    private double compute(int x, int y, int z, double scale) {
+        if (!lattice || scale < MIN_LATTICE_SCALE) {
+            return generator.noise(x / scale, y / scale, z / scale);
+        }
+        final double result = getLattice(scale).sample(x, y, z);
+        if (Double.isNaN(result)) {
+            return generator.noise(x / scale, y / scale, z / scale);
+        }
+        if (errorStats != null) {
+            errorStats.record(scale, Math.abs(result - generator.noise(x / scale, y / scale, z / scale)));
+        }
+        return result;
+    }
+
+    private Lattice getLattice(double scale) {
+        for (Lattice it : lattices) {
+            if (it.scale == scale) return it;
+        }
+        Lattice result = new Lattice(scale);
+        Lattice[] grown = new Lattice[lattices.length + 1];
+        System.arraycopy(lattices, 0, grown, 0, lattices.length);
+        grown[lattices.length] = result;
+        lattices = grown;
+        return result;
+    }
+
+    /**
+     * Lattice of one scale.  Horizontal layers are allocated and
+     * evaluated lazily, since surfaces are usually clustered in a
+     * few height ranges.
+     */
+    private final class Lattice {
+        private final double scale;
+        private final int shift;
+        private final int x0;
+        private final int y0;
+        private final int z0;
+        private final int nx;
+        private final int nz;
+        private final float[][] layers;
+
+        Lattice(final double scale) {
+            this.scale = scale;
+            int s = 0;
+            while ((2 << s) <= MAX_STEP && (2 << s) <= scale / 4.0) s += 1;
+            this.shift = s;
+            final int step = 1 << shift;
+            this.x0 = Math.floorDiv(originX - MARGIN, step) * step;
+            this.z0 = Math.floorDiv(originZ - MARGIN, step) * step;
+            this.y0 = Math.floorDiv(minHeight, step) * step;
+            this.nx = (originX + 16 + MARGIN - x0) / step + 2;
+            this.nz = (originZ + 16 + MARGIN - z0) / step + 2;
+            this.layers = new float[(maxHeight - y0) / step + 2][];
+        }
+
+        /**
+         * @return the interpolated noise, or NaN if the position is
+         *   not covered
+         */
+        double sample(int x, int y, int z) {
+            final int fx = x - x0;
+            final int fy = y - y0;
+            final int fz = z - z0;
+            final int ix = fx >> shift;
+            final int iy = fy >> shift;
+            final int iz = fz >> shift;
+            if (fx < 0 || fy < 0 || fz < 0 || ix + 1 >= nx || iy + 1 >= layers.length || iz + 1 >= nz) {
+                return Double.NaN;
+            }
+            final int mask = (1 << shift) - 1;
+            final double tx = (double) (fx & mask) / (1 << shift);
+            final double ty = (double) (fy & mask) / (1 << shift);
+            final double tz = (double) (fz & mask) / (1 << shift);
+            if (tx == 0 && ty == 0 && tz == 0) return node(ix, iy, iz);
+            final double c00 = lerp(tx, node(ix, iy, iz), node(ix + 1, iy, iz));
+            final double c10 = lerp(tx, node(ix, iy + 1, iz), node(ix + 1, iy + 1, iz));
+            final double c01 = lerp(tx, node(ix, iy, iz + 1), node(ix + 1, iy, iz + 1));
+            final double c11 = lerp(tx, node(ix, iy + 1, iz + 1), node(ix + 1, iy + 1, iz + 1));
+            return lerp(tz, lerp(ty, c00, c10), lerp(ty, c01, c11));
+        }
+
+        private double node(int ix, int iy, int iz) {
+            float[] layer = layers[iy];
+            if (layer == null && generator.isVector()) {
+                layer = evaluateLayer(iy);
+                layers[iy] = layer;
+            } else if (layer == null) {
+                layer = new float[nx * nz];
+                Arrays.fill(layer, Float.NaN);
+                layers[iy] = layer;
+            }
+            final int index = iz * nx + ix;
+            float result = layer[index];
+            if (Float.isNaN(result)) {
+                result = (float) generator.noise((x0 + (ix << shift)) / scale,
+                                                 (y0 + (iy << shift)) / scale,
+                                                 (z0 + (iz << shift)) / scale);
+                layer[index] = result;
+            }
+            return result;
+        }
+
+        private float[] evaluateLayer(int iy) {
+            final int count = nx * nz;
+            if (batchOut.length < count) {
+                batchX = new double[count];
+                batchY = new double[count];
+                batchZ = new double[count];
+                batchOut = new double[count];
+            }
+            final double y = (y0 + (iy << shift)) / scale;
+            for (int iz = 0; iz < nz; iz += 1) {
+                for (int ix = 0; ix < nx; ix += 1) {
+                    final int index = iz * nx + ix;
+                    batchX[index] = (x0 + (ix << shift)) / scale;
+                    batchY[index] = y;
+                    batchZ[index] = (z0 + (iz << shift)) / scale;
+                }
+            }
+            generator.noise(batchX, batchY, batchZ, batchOut, count);
+            final float[] result = new float[count];
+            for (int i = 0; i < count; i += 1) {
+                result[i] = (float) batchOut[i];
+            }
+            return result;
+        }
+    }
+
+    private static double lerp(double t, double a, double b) {
+        return a + t * (b - a);
+    }
+
+    /**
+     * Interpolation error by scale, shared by all fields while
+     * verification is enabled.
+     */
+    static final class ErrorStats {
+        private final Map<Double, DoubleAccumulator> maxErrors = new ConcurrentHashMap<>();
+        private final Map<Double, DoubleAdder> sumErrors = new ConcurrentHashMap<>();
+        private final Map<Double, LongAdder> samples = new ConcurrentHashMap<>();
+
+        void record(double scale, double error) {
+            maxErrors.computeIfAbsent(scale, s -> new DoubleAccumulator(Math::max, 0.0)).accumulate(error);
+            sumErrors.computeIfAbsent(scale, s -> new DoubleAdder()).add(error);
+            samples.computeIfAbsent(scale, s -> new LongAdder()).increment();
+        }
+
+        /**
+         * Scale => {maximum error, mean error, sample count}.
+         */
+        Map<Double, double[]> report() {
+            Map<Double, double[]> result = new TreeMap<>();
+            // Samples are counted last, so the others are present
+            for (Map.Entry<Double, LongAdder> entry : samples.entrySet()) {
+                final double count = entry.getValue().sum();
+                result.put(entry.getKey(), new double[] {
+                        maxErrors.get(entry.getKey()).get(),
+                        sumErrors.get(entry.getKey()).sum() / count,
+                        count,
+                    });
+            }
+            return result;
+        }
+
+        void reset() {
+            maxErrors.clear();
+            sumErrors.clear();
+            samples.clear();
+        }
+    }
+}
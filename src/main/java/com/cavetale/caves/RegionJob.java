@@ -0,0 +1,189 @@
+package com.cavetale.caves;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.bukkit.World;
+import org.bukkit.command.CommandSender;
+
+/**
+ * Decorate all existing chunks within some areas of a world which
+ * was generated before this plugin.  Chunks which were never
+ * generated are skipped.
+ *
+ * Progress is saved to a checkpoint file every few seconds and when
+ * the plugin is disabled.  It holds the areas and order, so the
+ * chunk list can be rebuilt, the index below which all chunks are
+ * complete, and the few completed chunks beyond that index.
+ */
+final class RegionJob extends BulkJob {
+    private static final int MAGIC = 0x43415652; // CAVR
+    private static final int VERSION = 1;
+    private static final Pattern REGION_FILE = Pattern.compile("r\\.(-?[0-9]+)\\.(-?[0-9]+)\\.mca");
+    private final CavesPlugin plugin;
+    private final ChunkOrder order;
+    // Chunk rectangles {ax, az, bx, bz}, inclusive
+    private final List<int[]> areas;
+    private final Path file;
+
+    RegionJob(final CavesPlugin plugin, final CommandSender sender, final World world,
+              final ChunkOrder order, final List<int[]> areas) {
+        super(nameOf(world), sender, world, null, order.sort(chunksOf(areas)));
+        this.plugin = plugin;
+        this.order = order;
+        this.areas = areas;
+        this.file = fileOf(plugin, world.getName());
+        this.generate = false;
+    }
+
+    static String nameOf(World world) {
+        return "region " + world.getName();
+    }
+
+    private static Path fileOf(CavesPlugin plugin, String worldName) {
+        return plugin.getDataFolder().toPath().resolve("jobs").resolve("region-" + worldName + ".dat");
+    }
+
+    private static long[] chunksOf(List<int[]> areas) {
+        int count = 0;
+        for (int[] area : areas) {
+            count += (area[2] - area[0] + 1) * (area[3] - area[1] + 1);
+        }
+        long[] result = new long[count];
+        int i = 0;
+        for (int[] area : areas) {
+            for (int z = area[1]; z <= area[3]; z += 1) {
+                for (int x = area[0]; x <= area[2]; x += 1) {
+                    result[i++] = chunkKey(x, z);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * The area of each region file of the world.
+     * @param names the file names, or empty for all files
+     */
+    static List<int[]> regionAreas(World world, List<String> names) {
+        List<String> files = new ArrayList<>(names);
+        if (files.isEmpty()) {
+            String[] list = new File(world.getWorldFolder(), "region").list();
+            if (list != null) files.addAll(List.of(list));
+        }
+        List<int[]> result = new ArrayList<>();
+        for (String name : files) {
+            Matcher matcher = REGION_FILE.matcher(name);
+            if (!matcher.matches()) {
+                if (!names.isEmpty()) throw new IllegalArgumentException("Invalid region file: " + name);
+                continue;
+            }
+            final int rx = Integer.parseInt(matcher.group(1));
+            final int rz = Integer.parseInt(matcher.group(2));
+            result.add(new int[] {rx << 5, rz << 5, (rx << 5) + 31, (rz << 5) + 31});
+        }
+        return result;
+    }
+
+    @Override
+    protected void save() {
+        // All chunks below the watermark are complete
+        final int watermark = completed.nextClearBit(0);
+        final long[] beyond = completed.get(watermark, Math.max(watermark, next)).toLongArray();
+        try {
+            Files.createDirectories(file.getParent());
+            Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+            try (DataOutputStream out = new DataOutputStream(Files.newOutputStream(tmp))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeUTF(world.getName());
+                out.writeUTF(order.name());
+                out.writeInt(areas.size());
+                for (int[] area : areas) {
+                    for (int value : area) out.writeInt(value);
+                }
+                out.writeInt(chunks.length);
+                out.writeInt(watermark);
+                out.writeInt(beyond.length);
+                for (long word : beyond) out.writeLong(word);
+            }
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException ioe) {
+            plugin.getLogger().log(Level.SEVERE, "Saving " + file, ioe);
+        }
+    }
+
+    @Override
+    protected void discard() {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException ioe) {
+            plugin.getLogger().log(Level.SEVERE, "Deleting " + file, ioe);
+        }
+    }
+
+    /**
+     * Load a checkpoint.
+     * @return the job, or null if its world is not loaded
+     */
+    static RegionJob load(CavesPlugin plugin, CommandSender sender, Path path) throws IOException {
+        try (DataInputStream in = new DataInputStream(Files.newInputStream(path))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("Unknown format");
+            }
+            World world = plugin.getServer().getWorld(in.readUTF());
+            ChunkOrder order = ChunkOrder.valueOf(in.readUTF());
+            final int areaCount = in.readInt();
+            List<int[]> areas = new ArrayList<>(areaCount);
+            for (int i = 0; i < areaCount; i += 1) {
+                areas.add(new int[] {in.readInt(), in.readInt(), in.readInt(), in.readInt()});
+            }
+            final int total = in.readInt();
+            final int watermark = in.readInt();
+            long[] beyond = new long[in.readInt()];
+            for (int i = 0; i < beyond.length; i += 1) beyond[i] = in.readLong();
+            if (world == null) return null;
+            RegionJob job = new RegionJob(plugin, sender, world, order, areas);
+            if (job.chunks.length != total) throw new IOException("Chunk count mismatch");
+            BitSet previous = new BitSet(total);
+            previous.set(0, watermark);
+            BitSet rest = BitSet.valueOf(beyond);
+            for (int i = rest.nextSetBit(0); i >= 0; i = rest.nextSetBit(i + 1)) {
+                previous.set(watermark + i);
+            }
+            job.resume(previous);
+            return job;
+        }
+    }
+
+    /**
+     * Resume all jobs with a checkpoint.
+     */
+    static void resumeAll(CavesPlugin plugin) {
+        File[] files = plugin.getDataFolder().toPath().resolve("jobs").toFile()
+            .listFiles((dir, name) -> name.startsWith("region-") && name.endsWith(".dat"));
+        if (files == null) return;
+        for (File it : files) {
+            try {
+                RegionJob job = load(plugin, plugin.getServer().getConsoleSender(), it.toPath());
+                if (job == null) {
+                    plugin.getLogger().warning("World not loaded, not resuming " + it);
+                    continue;
+                }
+                plugin.getBulkScheduler().submit(job);
+            } catch (IOException | IllegalArgumentException e) {
+                plugin.getLogger().log(Level.SEVERE, "Resuming " + it, e);
+            }
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package com.cavetale.caves;
+
+import java.util.function.Predicate;
+import org.bukkit.Material;
+
+/**
+ * Which 16x16x16 sections of a chunk the scan can cull.  A surface
+ * is a replaceable block with an inside block no more than two
+ * steps away, the first of which is a face neighbor.  A section
+ * without any inside block can thus only hold surfaces if the layer
+ * of blocks around its six faces holds an inside block.
+ *
+ * - SOLID: no inside blocks, nor around it, so nothing to find
+ * - INSIDE: only inside blocks, which become runs without looking
+ *   at each block
+ * - SCAN: anything else
+ *
+ * Telling them apart stops at the first block which makes a section
+ * mixed, and sections which the snapshot knows to be empty are not
+ * read at all.
+ */
+final class SectionMask {
+    static final byte SCAN = 0;
+    static final byte SOLID = 1;
+    static final byte INSIDE = 2;
+    private static final byte MIXED = 3;
+    private final int minHeight;
+    private final byte[] kinds;
+
+    private SectionMask(final int minHeight, final int sections) {
+        this.minHeight = minHeight;
+        this.kinds = new byte[sections];
+    }
+
+    /**
+     * @param top the first y which is not scanned in any column
+     * @param inside blocks which expose surfaces, none of which are
+     *   replaceable
+     */
+    static SectionMask compute(Voxels voxels, int chunkX, int chunkZ, int top, Predicate<Material> inside) {
+        final int minHeight = voxels.getMinHeight();
+        final SectionMask result = new SectionMask(minHeight, Math.max(0, (top - minHeight + 15) >> 4));
+        final int ax = chunkX << 4;
+        final int az = chunkZ << 4;
+        for (int s = 0; s < result.kinds.length; s += 1) {
+            final int ay = minHeight + (s << 4);
+            if (voxels.isSectionEmpty(chunkX, ay, chunkZ)) {
+                result.kinds[s] = INSIDE;
+                continue;
+            }
+            boolean anyInside = false;
+            boolean anyOther = false;
+            SECTION:
+            for (int y = ay; y < ay + 16; y += 1) {
+                for (int z = az; z < az + 16; z += 1) {
+                    for (int x = ax; x < ax + 16; x += 1) {
+                        if (inside.test(voxels.getType(x, y, z))) {
+                            anyInside = true;
+                        } else {
+                            anyOther = true;
+                        }
+                        if (anyInside && anyOther) break SECTION;
+                    }
+                }
+            }
+            result.kinds[s] = anyInside
+                ? (anyOther ? MIXED : INSIDE)
+                : SOLID;
+        }
+        for (int s = 0; s < result.kinds.length; s += 1) {
+            if (result.kinds[s] == MIXED) {
+                result.kinds[s] = SCAN;
+            } else if (result.kinds[s] == SOLID && result.isExposed(voxels, s, ax, az, inside)) {
+                result.kinds[s] = SCAN;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Check the layers around the faces of a solid section for
+     * inside blocks.  Sections above and below which are known to
+     * be solid need no looking.
+     */
+    private boolean isExposed(Voxels voxels, int s, int ax, int az, Predicate<Material> inside) {
+        final int ay = minHeight + (s << 4);
+        final boolean below = s == 0 || kinds[s - 1] != SOLID;
+        final boolean above = s + 1 >= kinds.length || kinds[s + 1] != SOLID;
+        for (int i = 0; i < 16; i += 1) {
+            for (int j = 0; j < 16; j += 1) {
+                if (below && inside.test(voxels.getType(ax + i, ay - 1, az + j))) return true;
+                if (above && inside.test(voxels.getType(ax + i, ay + 16, az + j))) return true;
+                if (inside.test(voxels.getType(ax - 1, ay + i, az + j))) return true;
+                if (inside.test(voxels.getType(ax + 16, ay + i, az + j))) return true;
+                if (inside.test(voxels.getType(ax + j, ay + i, az - 1))) return true;
+                if (inside.test(voxels.getType(ax + j, ay + i, az + 16))) return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Get the kind of the section containing y, or SCAN above the
+     * computed sections.
+     */
+    public byte get(int y) {
+        final int s = (y - minHeight) >> 4;
+        return s < kinds.length ? kinds[s] : SCAN;
+    }
+
+    /**
+     * The first y of the next section.
+     */
+    public int next(int y) {
+        return minHeight + (((y - minHeight) >> 4) + 1 << 4);
+    }
+
+    public int count(byte kind) {
+        int result = 0;
+        for (byte it : kinds) {
+            if (it == kind) result += 1;
+        }
+        return result;
+    }
+}
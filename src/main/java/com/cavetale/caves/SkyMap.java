@@ -0,0 +1,190 @@
+package com.cavetale.caves;
+
+import java.util.Arrays;
+import org.bukkit.Material;
+import org.bukkit.Tag;
+
+/**
+ * Which blocks in and around a chunk are open to the sky, derived
+ * from heightmaps instead of the light engine.  Lighting may not
+ * have settled while a chunk is being decorated, heightmaps have.
+ *
+ * A block is open if it is above the heightmap of its column.
+ * Optionally, openness floods sideways and down into the caves
+ * below, losing one level per block like sky light does, so cave
+ * mouths and overhangs stay open as well.
+ */
+final class SkyMap {
+    /**
+     * The chunk plus a border of one block.
+     */
+    private static final int SIZE = 18;
+    private static final int MAX_LEVEL = 15;
+    private final int originX;
+    private final int originZ;
+    private final int minHeight;
+    // Highest blocking block by column
+    private final int[] heights = new int[SIZE * SIZE];
+    // Flooded sky level below the heightmap, or null
+    private byte[] levels;
+
+    /**
+     * Tell if sky can pass through a block below the heightmap.
+     */
+    @FunctionalInterface
+    interface Passable {
+        boolean test(int x, int y, int z);
+    }
+
+    private SkyMap(final int chunkX, final int chunkZ, final int minHeight) {
+        this.originX = (chunkX << 4) - 1;
+        this.originZ = (chunkZ << 4) - 1;
+        this.minHeight = minHeight;
+    }
+
+    /**
+     * Read the heightmaps of the captured snapshots.  They only
+     * hold MOTION_BLOCKING, so each column continues down through
+     * leaves and whatever they cover, which is usually nothing.
+     * Columns in chunks which were not captured are considered
+     * covered.  Call before any edits.  Safe to call off the main
+     * thread.
+     */
+    static SkyMap read(ChunkView view) {
+        SkyMap sky = new SkyMap(view.getChunkX(), view.getChunkZ(), view.getMinHeight());
+        for (int dz = 0; dz < SIZE; dz += 1) {
+            for (int dx = 0; dx < SIZE; dx += 1) {
+                final int x = sky.originX + dx;
+                final int z = sky.originZ + dz;
+                if (!view.isCaptured(x >> 4, z >> 4)) {
+                    sky.heights[dz * SIZE + dx] = view.getMaxHeight();
+                    continue;
+                }
+                int y = view.getHighestBlockYAt(x, z);
+                while (y >= sky.minHeight && !isBlocking(view.getType(x, y, z))) {
+                    y -= 1;
+                }
+                sky.heights[dz * SIZE + dx] = y;
+            }
+        }
+        return sky;
+    }
+
+    /**
+     * Compute the heightmap from the blocks, for voxels without a
+     * world.  Like MOTION_BLOCKING_NO_LEAVES, solid blocks and
+     * liquids count, leaves don't.
+     */
+    static SkyMap scan(Voxels voxels, int chunkX, int chunkZ) {
+        SkyMap sky = new SkyMap(chunkX, chunkZ, voxels.getMinHeight());
+        for (int dz = 0; dz < SIZE; dz += 1) {
+            for (int dx = 0; dx < SIZE; dx += 1) {
+                final int x = sky.originX + dx;
+                final int z = sky.originZ + dz;
+                int y = voxels.getMaxHeight() - 1;
+                while (y >= sky.minHeight && !isBlocking(voxels.getType(x, y, z))) {
+                    y -= 1;
+                }
+                sky.heights[dz * SIZE + dx] = y;
+            }
+        }
+        return sky;
+    }
+
+    private static boolean isBlocking(Material mat) {
+        if (mat == Material.WATER || mat == Material.LAVA) return true;
+        return mat.isSolid() && !Tag.LEAVES.isTagged(mat);
+    }
+
+    private int column(int x, int z) {
+        final int dx = x - originX;
+        final int dz = z - originZ;
+        if (dx < 0 || dx >= SIZE || dz < 0 || dz >= SIZE) return -1;
+        return dz * SIZE + dx;
+    }
+
+    /**
+     * Get the highest blocking block.
+     */
+    public int getHeight(int x, int z) {
+        final int column = column(x, z);
+        return column < 0 ? Integer.MAX_VALUE : heights[column];
+    }
+
+    public boolean isOpen(int x, int y, int z) {
+        final int column = column(x, z);
+        if (column < 0) return false;
+        if (y > heights[column]) return true;
+        if (levels == null || y < minHeight) return false;
+        return levels[index(column, y)] > 0;
+    }
+
+    private int index(int column, int y) {
+        return (y - minHeight) * SIZE * SIZE + column;
+    }
+
+    /**
+     * Let the open sky flood into all passable blocks below the
+     * heightmaps.  Safe to call off the main thread.
+     */
+    public void flood(Passable passable) {
+        int maxY = minHeight;
+        for (int height : heights) maxY = Math.max(maxY, height);
+        levels = new byte[(maxY - minHeight + 1) * SIZE * SIZE];
+        int[] queue = new int[1024];
+        int tail = 0;
+        // Seed all covered blocks which touch the open sky from the
+        // side or from above.
+        for (int dz = 0; dz < SIZE; dz += 1) {
+            for (int dx = 0; dx < SIZE; dx += 1) {
+                final int column = dz * SIZE + dx;
+                int lo = heights[column];
+                if (dx > 0) lo = Math.min(lo, heights[column - 1] + 1);
+                if (dx < SIZE - 1) lo = Math.min(lo, heights[column + 1] + 1);
+                if (dz > 0) lo = Math.min(lo, heights[column - SIZE] + 1);
+                if (dz < SIZE - 1) lo = Math.min(lo, heights[column + SIZE] + 1);
+                for (int y = Math.max(lo, minHeight); y <= heights[column]; y += 1) {
+                    if (!passable.test(originX + dx, y, originZ + dz)) continue;
+                    final int index = index(column, y);
+                    levels[index] = (byte) (MAX_LEVEL - 1);
+                    if (tail == queue.length) queue = Arrays.copyOf(queue, tail * 2);
+                    queue[tail++] = index;
+                }
+            }
+        }
+        // Breadth first, so every block is reached with its highest
+        // level first and enqueued at most once.
+        final int layer = SIZE * SIZE;
+        for (int head = 0; head < tail; head += 1) {
+            final int index = queue[head];
+            final int level = levels[index] - 1;
+            if (level <= 0) continue;
+            final int column = index % layer;
+            final int y = minHeight + index / layer;
+            final int dx = column % SIZE;
+            final int dz = column / SIZE;
+            for (int i = 0; i < 6; i += 1) {
+                int nx = dx;
+                int ny = y;
+                int nz = dz;
+                switch (i) {
+                case 0: nx -= 1; break;
+                case 1: nx += 1; break;
+                case 2: nz -= 1; break;
+                case 3: nz += 1; break;
+                case 4: ny -= 1; break;
+                default: ny += 1; break;
+                }
+                if (nx < 0 || nx >= SIZE || nz < 0 || nz >= SIZE || ny < minHeight) continue;
+                final int ncolumn = nz * SIZE + nx;
+                if (ny > heights[ncolumn]) continue;
+                final int nindex = index(ncolumn, ny);
+                if (levels[nindex] >= level) continue;
+                if (!passable.test(originX + nx, ny, originZ + nz)) continue;
+                levels[nindex] = (byte) level;
+                if (tail == queue.length) queue = Arrays.copyOf(queue, tail * 2);
+                queue[tail++] = nindex;
+            }
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package com.cavetale.caves;
+
+import org.bukkit.Chunk;
+import org.bukkit.generator.structure.GeneratedStructure;
+import org.bukkit.generator.structure.StructurePiece;
+import org.bukkit.util.BoundingBox;
+
+/**
+ * The blocks of one chunk which belong to a structure piece, one bit
+ * per block.  Chunks without any structure share an empty mask.
+ * Only structures which the server generated and reports for the
+ * chunk are known.  Custom ones are left to Core, see
+ * CaveDecorator.excludeCore.
+ */
+final class StructureMask {
+    static final StructureMask EMPTY = new StructureMask(0, 0, 0, null);
+    private final int originX;
+    private final int originZ;
+    private final int minHeight;
+    // Bit by (y - minHeight) << 8 | z << 4 | x, or null if empty
+    private final long[] bits;
+
+    private StructureMask(final int originX, final int originZ, final int minHeight, final long[] bits) {
+        this.originX = originX;
+        this.originZ = originZ;
+        this.minHeight = minHeight;
+        this.bits = bits;
+    }
+
+    /**
+     * Rasterize the bounding boxes of all structure pieces which
+     * intersect the chunk.  Must be called on the main thread.
+     */
+    static StructureMask capture(Chunk chunk) {
+        final int originX = chunk.getX() << 4;
+        final int originZ = chunk.getZ() << 4;
+        final int minHeight = chunk.getWorld().getMinHeight();
+        final int maxHeight = chunk.getWorld().getMaxHeight();
+        long[] bits = null;
+        for (GeneratedStructure structure : chunk.getStructures()) {
+            for (StructurePiece piece : structure.getPieces()) {
+                BoundingBox box = piece.getBoundingBox();
+                // Bounds are inclusive, clamped to the chunk
+                final int ax = Math.max(originX, (int) Math.floor(box.getMinX()));
+                final int az = Math.max(originZ, (int) Math.floor(box.getMinZ()));
+                final int ay = Math.max(minHeight, (int) Math.floor(box.getMinY()));
+                final int bx = Math.min(originX + 15, (int) Math.floor(box.getMaxX()));
+                final int bz = Math.min(originZ + 15, (int) Math.floor(box.getMaxZ()));
+                final int by = Math.min(maxHeight - 1, (int) Math.floor(box.getMaxY()));
+                if (ax > bx || az > bz || ay > by) continue;
+                if (bits == null) bits = new long[(maxHeight - minHeight) << 2];
+                for (int y = ay; y <= by; y += 1) {
+                    for (int z = az; z <= bz; z += 1) {
+                        for (int x = ax; x <= bx; x += 1) {
+                            final int index = (y - minHeight) << 8 | (z - originZ) << 4 | (x - originX);
+                            bits[index >> 6] |= 1L << index;
+                        }
+                    }
+                }
+            }
+        }
+        return bits != null
+            ? new StructureMask(originX, originZ, minHeight, bits)
+            : EMPTY;
+    }
+
+    public boolean isEmpty() {
+        return bits == null;
+    }
+
+    /**
+     * Check a position within the chunk.
+     */
+    public boolean contains(int x, int y, int z) {
+        if (bits == null) return false;
+        final int index = (y - minHeight) << 8 | (z - originZ) << 4 | (x - originX);
+        return (bits[index >> 6] & (1L << index)) != 0;
+    }
+}
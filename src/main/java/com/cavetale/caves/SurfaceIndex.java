@@ -0,0 +1,170 @@
+package com.cavetale.caves;
+
+import java.util.Arrays;
+import org.bukkit.block.BlockFace;
+
+/**
+ * The exposed cave surfaces of one chunk.  Each surface is a packed
+ * position relative to the chunk plus one bitfield holding its
+ * faces, orientation, height and biome type, all in primitive
+ * arrays.  Lookup by position goes through an open addressing
+ * table, so the hot path allocates next to nothing.
+ */
+final class SurfaceIndex {
+    // Faces, in the order of CaveDecorator.FACING_NEIGHBORS
+    static final int UP = 1;
+    static final int DOWN = 1 << 1;
+    static final int NORTH = 1 << 2;
+    static final int EAST = 1 << 3;
+    static final int SOUTH = 1 << 4;
+    static final int WEST = 1 << 5;
+    static final int FACES = 0x3F;
+    static final int HORIZONTAL_FACES = NORTH | EAST | SOUTH | WEST;
+    // Flags
+    static final int FLOOR = 1 << 6;
+    static final int CEILING = 1 << 7;
+    static final int WALL = 1 << 8;
+    static final int HORIZONTAL = 1 << 9;
+    static final int REMOVED = 1 << 10;
+    // Biome type ordinal + 1, 0 means none
+    private static final int TYPE_SHIFT = 11;
+    private static final int TYPE_MASK = 0x1F;
+    // Cave height
+    private static final int HEIGHT_SHIFT = 16;
+    private static final int HEIGHT_MASK = 0xFFFF;
+    private static final Biomes.Type[] TYPES = Biomes.Type.values();
+
+    private final int originX;
+    private final int originZ;
+    private final int minHeight;
+    private int[] positions = new int[1024];
+    private int[] infos = new int[1024];
+    private int size;
+    // Surface index + 1 by position hash, 0 means empty
+    private int[] table = new int[2048];
+
+    SurfaceIndex(final int chunkX, final int chunkZ, final int minHeight) {
+        this.originX = chunkX << 4;
+        this.originZ = chunkZ << 4;
+        this.minHeight = minHeight;
+    }
+
+    static int bit(BlockFace face) {
+        switch (face) {
+        case UP: return UP;
+        case DOWN: return DOWN;
+        case NORTH: return NORTH;
+        case EAST: return EAST;
+        case SOUTH: return SOUTH;
+        case WEST: return WEST;
+        default: return 0;
+        }
+    }
+
+    static int getHeight(int info) {
+        return info >>> HEIGHT_SHIFT;
+    }
+
+    static int withHeight(int info, int height) {
+        return (info & ~(HEIGHT_MASK << HEIGHT_SHIFT)) | (Math.min(height, HEIGHT_MASK) << HEIGHT_SHIFT);
+    }
+
+    private int pack(int x, int y, int z) {
+        return (y - minHeight) << 8 | (z - originZ) << 4 | (x - originX);
+    }
+
+    private static int hash(int pos) {
+        return (pos * 0x9E3779B9) ^ (pos >>> 16);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Add a surface within the chunk.
+     * @return the index
+     */
+    public int add(int x, int y, int z, int info) {
+        if (size == positions.length) {
+            positions = Arrays.copyOf(positions, size * 2);
+            infos = Arrays.copyOf(infos, size * 2);
+        }
+        if (size * 2 >= table.length) rehash(table.length * 2);
+        final int index = size++;
+        final int pos = pack(x, y, z);
+        positions[index] = pos;
+        infos[index] = info;
+        insert(pos, index);
+        return index;
+    }
+
+    private void insert(int pos, int index) {
+        final int mask = table.length - 1;
+        int slot = hash(pos) & mask;
+        while (table[slot] != 0) slot = (slot + 1) & mask;
+        table[slot] = index + 1;
+    }
+
+    private void rehash(int capacity) {
+        table = new int[capacity];
+        for (int i = 0; i < size; i += 1) insert(positions[i], i);
+    }
+
+    /**
+     * Find a surface by world position.
+     * @return the index or -1
+     */
+    public int find(int x, int y, int z) {
+        if ((x >> 4) != (originX >> 4) || (z >> 4) != (originZ >> 4) || y < minHeight) return -1;
+        final int pos = pack(x, y, z);
+        final int mask = table.length - 1;
+        for (int slot = hash(pos) & mask; table[slot] != 0; slot = (slot + 1) & mask) {
+            final int index = table[slot] - 1;
+            if (positions[index] == pos) return index;
+        }
+        return -1;
+    }
+
+    public int getX(int index) {
+        return originX + (positions[index] & 0xF);
+    }
+
+    public int getY(int index) {
+        return minHeight + (positions[index] >>> 8);
+    }
+
+    public int getZ(int index) {
+        return originZ + ((positions[index] >>> 4) & 0xF);
+    }
+
+    public int getInfo(int index) {
+        return infos[index];
+    }
+
+    public void setInfo(int index, int info) {
+        infos[index] = info;
+    }
+
+    public boolean has(int index, int flag) {
+        return (infos[index] & flag) != 0;
+    }
+
+    public boolean isRemoved(int index) {
+        return (infos[index] & REMOVED) != 0;
+    }
+
+    public void remove(int index) {
+        infos[index] |= REMOVED;
+    }
+
+    public Biomes.Type getType(int index) {
+        final int type = (infos[index] >>> TYPE_SHIFT) & TYPE_MASK;
+        return type == 0 ? null : TYPES[type - 1];
+    }
+
+    public void setType(int index, Biomes.Type type) {
+        final int bits = type == null ? 0 : type.ordinal() + 1;
+        infos[index] = (infos[index] & ~(TYPE_MASK << TYPE_SHIFT)) | (bits << TYPE_SHIFT);
+    }
+}
@@ -0,0 +1,288 @@
+package com.cavetale.caves;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import org.bukkit.Bukkit;
+import org.bukkit.Material;
+import org.bukkit.block.data.BlockData;
+import org.bukkit.configuration.ConfigurationSection;
+import org.bukkit.configuration.file.YamlConfiguration;
+
+/**
+ * The surface blocks of every theme, compiled from themes.yml into
+ * flat tables.  There is a row for each biome type, orientation
+ * (floor, ceiling, wall) and layer, and a row has one cell per noise
+ * bucket, so looking up a surface block takes a noise sample and an
+ * array access.  The detail layer is looked up first and may leave
+ * a cell to the base layer.
+ *
+ * Tables are immutable and shared between threads.  Reloading
+ * compiles a new table and swaps it in.
+ */
+final class ThemeTable {
+    static final int BUCKETS = 512;
+    private static final int FLOOR = 0;
+    private static final int CEILING = 1;
+    private static final int WALL = 2;
+    private static final String[] ORIENTATIONS = {"floor", "ceiling", "wall"};
+    private static final int BASE = 0;
+    private static final int DETAIL = 1;
+    private static final int LAYERS = 2;
+    private static final Biomes.Type[] TYPES = Biomes.Type.values();
+    private static final int ROWS = TYPES.length * ORIENTATIONS.length * LAYERS;
+    static final ThemeTable EMPTY = new ThemeTable();
+    private final double[] scales = new double[ROWS];
+    private final int[] bands = new int[ROWS];
+    private final int[] minY = new int[ROWS];
+    private final char[] cells = new char[ROWS * BUCKETS];
+    private BlockData[][] choices;
+
+    private ThemeTable() {
+        Arrays.fill(minY, Integer.MIN_VALUE);
+        choices = new BlockData[1][];
+    }
+
+    private static int row(int type, int orientation, int layer) {
+        return (type * ORIENTATIONS.length + orientation) * LAYERS + layer;
+    }
+
+    private static int bucket(double noise) {
+        final int result = (int) ((noise + 1.0) * (BUCKETS / 2));
+        return result < 0 ? 0 : Math.min(BUCKETS - 1, result);
+    }
+
+    /**
+     * The surface block of the current surface of the context, or
+     * null to leave it.
+     */
+    public BlockData get(Context context) {
+        final int orientation = context.floor ? FLOOR : (context.ceiling ? CEILING : WALL);
+        final int row = row(context.type.ordinal(), orientation, BASE);
+        if (context.y < minY[row]) return null;
+        final BlockData detail = get(context, row + DETAIL);
+        return detail != null ? detail : get(context, row);
+    }
+
+    private BlockData get(Context context, int row) {
+        final int column;
+        if (bands[row] > 0) {
+            column = Math.floorMod(context.y, bands[row]);
+        } else if (scales[row] > 0) {
+            column = bucket(context.noise.get(context.x, context.y, context.z, scales[row]));
+        } else {
+            return null;
+        }
+        final BlockData[] choice = choices[cells[row * BUCKETS + column]];
+        if (choice == null) return null;
+        return choice.length == 1
+            ? choice[0]
+            : choice[context.nextInt(BlockRandom.Purpose.VARIANT, choice.length)];
+    }
+
+    /**
+     * The themes shipped with the plugin.
+     */
+    static ThemeTable defaults(List<String> errors) {
+        try (InputStream in = ThemeTable.class.getResourceAsStream("/themes.yml")) {
+            if (in == null) {
+                errors.add("themes.yml not found");
+                return EMPTY;
+            }
+            return load(new InputStreamReader(in, StandardCharsets.UTF_8), errors);
+        } catch (IOException ioe) {
+            errors.add("themes.yml: " + ioe.getMessage());
+            return EMPTY;
+        }
+    }
+
+    static ThemeTable load(Reader reader, List<String> errors) {
+        return compile(YamlConfiguration.loadConfiguration(reader), errors);
+    }
+
+    /**
+     * Compile the themes of a config.  Broken entries are skipped
+     * and reported in errors.
+     */
+    static ThemeTable compile(ConfigurationSection config, List<String> errors) {
+        final ThemeTable table = new ThemeTable();
+        final Compiler compiler = table.new Compiler(errors);
+        for (String key : config.getKeys(false)) {
+            final Biomes.Type type;
+            try {
+                type = Biomes.Type.valueOf(key.toUpperCase(Locale.ROOT));
+            } catch (IllegalArgumentException iae) {
+                errors.add(key + ": Unknown biome type");
+                continue;
+            }
+            ConfigurationSection section = config.getConfigurationSection(key);
+            String path = key;
+            for (int depth = 0; section != null && section.isString("like"); depth += 1) {
+                if (depth == TYPES.length) {
+                    section = null;
+                    break;
+                }
+                path = section.getString("like");
+                section = config.getConfigurationSection(path);
+            }
+            if (section == null) {
+                errors.add(key + ": Not a theme: " + path);
+                continue;
+            }
+            for (int orientation = 0; orientation < ORIENTATIONS.length; orientation += 1) {
+                String name = ORIENTATIONS[orientation];
+                if (!section.isConfigurationSection(name)) name = "default";
+                final ConfigurationSection rule = section.getConfigurationSection(name);
+                if (rule == null) continue;
+                compiler.compileRule(row(type.ordinal(), orientation, BASE), rule, path + "." + name);
+            }
+        }
+        table.choices = compiler.choices.toArray(new BlockData[0][]);
+        return table;
+    }
+
+    /**
+     * Fill in the rows of a table.  Choices of blocks are shared
+     * between all cells which spell them the same.
+     */
+    private final class Compiler {
+        private final List<String> errors;
+        private final List<BlockData[]> choices = new ArrayList<>();
+        private final Map<String, Integer> choiceIds = new HashMap<>();
+
+        Compiler(final List<String> errors) {
+            this.errors = errors;
+            choices.add(null);
+        }
+
+        void compileRule(int row, ConfigurationSection rule, String path) {
+            if (rule.isInt("min-y")) minY[row] = rule.getInt("min-y");
+            if (rule.isList("bands")) {
+                compileBands(row, rule.getStringList("bands"), path + ".bands");
+            } else {
+                compileLayer(row, rule, path);
+            }
+            final ConfigurationSection detail = rule.getConfigurationSection("detail");
+            if (detail != null) compileLayer(row + DETAIL, detail, path + ".detail");
+        }
+
+        /**
+         * Each line names one or more blocks to choose from at
+         * random, and the noise they go up to.  The first line which
+         * is above the noise wins.
+         */
+        private void compileLayer(int row, ConfigurationSection layer, String path) {
+            final List<String> lines = layer.getStringList("blocks");
+            if (lines.isEmpty()) {
+                errors.add(path + ": Blocks missing");
+                return;
+            }
+            final double scale = layer.getDouble("scale", 8.0);
+            if (!(scale > 0)) {
+                errors.add(path + ".scale: Must be positive: " + scale);
+                return;
+            }
+            final double[] bounds = new double[lines.size()];
+            final int[] ids = new int[lines.size()];
+            for (int i = 0; i < lines.size(); i += 1) {
+                final String linePath = path + ".blocks[" + i + "]";
+                final String[] tokens = lines.get(i).trim().split("\\s+");
+                int count = tokens.length;
+                bounds[i] = Double.POSITIVE_INFINITY;
+                if (count >= 3 && tokens[count - 2].equals("below")) {
+                    try {
+                        bounds[i] = Double.parseDouble(tokens[count - 1]);
+                    } catch (NumberFormatException nfe) {
+                        errors.add(linePath + ": Not a number: " + tokens[count - 1]);
+                        return;
+                    }
+                    count -= 2;
+                }
+                ids[i] = choiceOf(tokens, count, linePath);
+                if (ids[i] < 0) return;
+            }
+            for (int bucket = 0; bucket < BUCKETS; bucket += 1) {
+                final double noise = (bucket + 0.5) / (BUCKETS / 2) - 1.0;
+                for (int i = 0; i < bounds.length; i += 1) {
+                    if (noise < bounds[i]) {
+                        cells[row * BUCKETS + bucket] = (char) ids[i];
+                        break;
+                    }
+                }
+            }
+            scales[row] = scale;
+        }
+
+        /**
+         * Horizontal bands which repeat every so many blocks.
+         */
+        private void compileBands(int row, List<String> lines, String path) {
+            if (lines.isEmpty() || lines.size() > BUCKETS) {
+                errors.add(path + ": Between 1 and " + BUCKETS + " bands needed");
+                return;
+            }
+            for (int i = 0; i < lines.size(); i += 1) {
+                final String[] tokens = lines.get(i).trim().split("\\s+");
+                final int id = choiceOf(tokens, tokens.length, path + "[" + i + "]");
+                if (id < 0) return;
+                cells[row * BUCKETS + i] = (char) id;
+            }
+            bands[row] = lines.size();
+        }
+
+        /**
+         * The id of a choice of blocks, 0 to keep the block as it
+         * is, or -1 if it is broken.
+         */
+        private int choiceOf(String[] tokens, int count, String path) {
+            if (count == 0 || (count == 1 && tokens[0].isEmpty())) {
+                errors.add(path + ": Block missing");
+                return -1;
+            }
+            if (count == 1 && tokens[0].equals("keep")) return 0;
+            final String key = String.join(" ", Arrays.copyOf(tokens, count));
+            Integer id = choiceIds.get(key);
+            if (id != null) return id;
+            final BlockData[] choice = new BlockData[count];
+            for (int i = 0; i < count; i += 1) {
+                try {
+                    choice[i] = parseBlock(tokens[i]);
+                } catch (IllegalArgumentException iae) {
+                    errors.add(path + ": " + iae.getMessage());
+                    return -1;
+                }
+            }
+            if (choices.size() > Character.MAX_VALUE) {
+                errors.add(path + ": Too many different blocks");
+                return -1;
+            }
+            id = choices.size();
+            choices.add(choice);
+            choiceIds.put(key, id);
+            return id;
+        }
+    }
+
+    /**
+     * Plain materials are interned by Blocks, block states such as
+     * oak_leaves[persistent=true] are parsed by the server.
+     */
+    private static BlockData parseBlock(String spec) {
+        if (spec.indexOf('[') < 0) {
+            final Material material = Material.matchMaterial(spec);
+            if (material == null || !material.isBlock()) {
+                throw new IllegalArgumentException("Unknown block: " + spec);
+            }
+            return Blocks.of(material);
+        }
+        return Bukkit.createBlockData(spec);
+    }
+}
@@ -0,0 +1,438 @@
+package com.cavetale.caves;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import lombok.Getter;
+import org.bukkit.Bukkit;
+import org.bukkit.World;
+import org.bukkit.block.data.BlockData;
+
+/**
+ * The blocks each decorated chunk overwrote, so it can be undone.
+ * Each region has a journal in the world folder, to which records
+ * are appended: one per chunk for its edits, and more for the
+ * features grown there later.  A record is deflated and holds a
+ * palette of block states, then the positions in ascending order as
+ * varint deltas, each with the palette index of the block before
+ * and after.
+ *
+ * Undo only puts a block back if it is still of the material which
+ * was written, so later changes by players or the server are kept.
+ *
+ * Records are encoded by whoever plans the chunk, and journals are
+ * only touched by a single thread, so appending and undoing happen
+ * in order and off the main thread.
+ */
+final class UndoJournal {
+    private static final int MAGIC = 0x43415655; // CAVU
+    private static final int VERSION = 2;
+    // Positions within the 3x3 chunks around the center chunk
+    private static final int SIZE = 48;
+    private final CavesPlugin plugin;
+    private final ExecutorService thread;
+
+    /**
+     * The original and written blocks of one record, decoded.
+     */
+    record Undo(int chunkX, int chunkZ, long[] keys, BlockData[] before, BlockData[] after) { }
+
+    /**
+     * Blocks written outside the edit buffer of a chunk, such as
+     * grown features, to be journaled as one record of the chunk.
+     */
+    static final class Changes {
+        @Getter private final int chunkX;
+        @Getter private final int chunkZ;
+        private long[] keys = new long[16];
+        private BlockData[] before = new BlockData[16];
+        private BlockData[] after = new BlockData[16];
+        private int size;
+
+        Changes(final int chunkX, final int chunkZ) {
+            this.chunkX = chunkX;
+            this.chunkZ = chunkZ;
+        }
+
+        public void add(int x, int y, int z, BlockData oldData, BlockData newData) {
+            if (size == keys.length) {
+                keys = Arrays.copyOf(keys, size * 2);
+                before = Arrays.copyOf(before, size * 2);
+                after = Arrays.copyOf(after, size * 2);
+            }
+            keys[size] = ChunkView.key(x, y, z);
+            before[size] = oldData;
+            after[size] = newData;
+            size += 1;
+        }
+
+        /**
+         * @return the deflated record, or null if nothing changed
+         */
+        public byte[] encode(World world) {
+            return UndoJournal.encode(chunkX, chunkZ, world.getMinHeight(), world.getMaxHeight(),
+                                      keys, before, after, size);
+        }
+    }
+
+    UndoJournal(final CavesPlugin plugin) {
+        this.plugin = plugin;
+        this.thread = Executors.newSingleThreadExecutor(runnable -> {
+                Thread result = new Thread(runnable, "Caves-Journal");
+                result.setDaemon(true);
+                return result;
+            });
+    }
+
+    private static Path fileOf(World world, int chunkX, int chunkZ) {
+        return ChunkLedger.folderOf(world).resolve("undo")
+            .resolve("r." + (chunkX >> 5) + "." + (chunkZ >> 5) + ".journal");
+    }
+
+    /**
+     * Record the blocks which the edits of a view will overwrite,
+     * as they were captured, and what they become.  Call after
+     * dropping no-ops.  Safe to call off the main thread.
+     * @return the deflated record, or null if nothing is edited
+     */
+    static byte[] encode(ChunkView view) {
+        final EditBuffer edits = view.getEdits();
+        final long[] keys = new long[edits.size()];
+        final BlockData[] before = new BlockData[edits.size()];
+        final BlockData[] after = new BlockData[edits.size()];
+        int count = 0;
+        for (int i = 0; i < edits.size(); i += 1) {
+            if (edits.getData(i) == null) continue;
+            final long key = edits.getKey(i);
+            keys[count] = key;
+            before[count] = view.getCaptured(ChunkView.keyX(key), ChunkView.keyY(key), ChunkView.keyZ(key));
+            after[count] = edits.getData(i);
+            count += 1;
+        }
+        return encode(view.getChunkX(), view.getChunkZ(), view.getMinHeight(), view.getMaxHeight(),
+                      keys, before, after, count);
+    }
+
+    /**
+     * Encode blocks within the 3x3 chunks around a chunk.  Blocks
+     * beyond are left out.
+     * @return the deflated record, or null if there are no blocks
+     */
+    private static byte[] encode(int chunkX, int chunkZ, int minHeight, int maxHeight,
+                                 long[] keys, BlockData[] before, BlockData[] after, int size) {
+        final int originX = (chunkX - 1) << 4;
+        final int originZ = (chunkZ - 1) << 4;
+        // Position index << 24 | array index, so sorting keeps both
+        long[] positions = new long[size];
+        int count = 0;
+        for (int i = 0; i < size; i += 1) {
+            final int dx = ChunkView.keyX(keys[i]) - originX;
+            final int dz = ChunkView.keyZ(keys[i]) - originZ;
+            final int y = ChunkView.keyY(keys[i]);
+            if (dx < 0 || dx >= SIZE || dz < 0 || dz >= SIZE || y < minHeight || y >= maxHeight) continue;
+            final long index = ((long) (y - minHeight) * SIZE + dz) * SIZE + dx;
+            positions[count++] = index << 24 | i;
+        }
+        if (count == 0) return null;
+        positions = Arrays.copyOf(positions, count);
+        Arrays.sort(positions);
+        final Map<BlockData, Integer> ids = new HashMap<>();
+        final List<BlockData> palette = new ArrayList<>();
+        final ByteArrayOutputStream body = new ByteArrayOutputStream(count * 4);
+        long previous = 0;
+        for (int i = 0; i < count; i += 1) {
+            final long index = positions[i] >>> 24;
+            final int source = (int) (positions[i] & 0xFFFFFF);
+            writeVarLong(body, index - previous);
+            writeVarInt(body, paletteId(before[source], ids, palette));
+            writeVarInt(body, paletteId(after[source], ids, palette));
+            previous = index;
+        }
+        final ByteArrayOutputStream raw = new ByteArrayOutputStream(body.size() + palette.size() * 24 + 8);
+        writeVarInt(raw, zigzag(minHeight));
+        writeVarInt(raw, palette.size());
+        for (BlockData data : palette) {
+            final byte[] bytes = data.getAsString().getBytes(StandardCharsets.UTF_8);
+            writeVarInt(raw, bytes.length);
+            raw.write(bytes, 0, bytes.length);
+        }
+        writeVarInt(raw, count);
+        final byte[] entries = body.toByteArray();
+        raw.write(entries, 0, entries.length);
+        return deflate(raw.toByteArray());
+    }
+
+    private static int paletteId(BlockData data, Map<BlockData, Integer> ids, List<BlockData> palette) {
+        Integer id = ids.get(data);
+        if (id == null) {
+            id = palette.size();
+            ids.put(data, id);
+            palette.add(data);
+        }
+        return id;
+    }
+
+    /**
+     * Decode a record.  Block states are parsed by the server.
+     */
+    static Undo decode(int chunkX, int chunkZ, byte[] record) throws IOException {
+        final DataInputStream in = new DataInputStream(new ByteArrayInputStream(inflate(record)));
+        final int minHeight = unzigzag(readVarInt(in));
+        final BlockData[] palette = new BlockData[readVarInt(in)];
+        for (int i = 0; i < palette.length; i += 1) {
+            final byte[] bytes = new byte[readVarInt(in)];
+            in.readFully(bytes);
+            palette[i] = Bukkit.createBlockData(new String(bytes, StandardCharsets.UTF_8));
+        }
+        final int count = readVarInt(in);
+        final long[] keys = new long[count];
+        final BlockData[] before = new BlockData[count];
+        final BlockData[] after = new BlockData[count];
+        final int originX = (chunkX - 1) << 4;
+        final int originZ = (chunkZ - 1) << 4;
+        long index = 0;
+        for (int i = 0; i < count; i += 1) {
+            index += readVarLong(in);
+            final int beforeId = readVarInt(in);
+            final int afterId = readVarInt(in);
+            if (beforeId >= palette.length || afterId >= palette.length) {
+                throw new IOException("Palette index out of bounds: " + Math.max(beforeId, afterId));
+            }
+            keys[i] = ChunkView.key(originX + (int) (index % SIZE),
+                                    minHeight + (int) (index / (SIZE * SIZE)),
+                                    originZ + (int) (index / SIZE % SIZE));
+            before[i] = palette[beforeId];
+            after[i] = palette[afterId];
+        }
+        return new Undo(chunkX, chunkZ, keys, before, after);
+    }
+
+    /**
+     * Append the record of a chunk to its journal, in the
+     * background.
+     */
+    public void append(World world, int chunkX, int chunkZ, byte[] record) {
+        thread.execute(() -> {
+                final Path file = fileOf(world, chunkX, chunkZ);
+                try {
+                    Files.createDirectories(file.getParent());
+                    final boolean fresh = !Files.exists(file);
+                    final OutputStream stream = Files.newOutputStream(file, StandardOpenOption.CREATE,
+                                                                      StandardOpenOption.APPEND);
+                    try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream))) {
+                        if (fresh) {
+                            out.writeInt(MAGIC);
+                            out.writeInt(VERSION);
+                        }
+                        out.writeInt(chunkX);
+                        out.writeInt(chunkZ);
+                        out.writeInt(record.length);
+                        out.write(record);
+                    }
+                } catch (IOException ioe) {
+                    plugin.getLogger().log(Level.SEVERE, "Appending to " + file, ioe);
+                }
+            });
+    }
+
+    /**
+     * Take the records of some chunks out of their journals, in the
+     * background, and hand them to the main thread, newest first.
+     * @param chunks the chunk keys, see BulkJob.chunkKey
+     */
+    public void take(World world, long[] chunks, Consumer<List<Undo>> callback) {
+        thread.execute(() -> {
+                final Map<Path, Set<Long>> files = new HashMap<>();
+                for (long chunk : chunks) {
+                    files.computeIfAbsent(fileOf(world, BulkJob.chunkX(chunk), BulkJob.chunkZ(chunk)),
+                                          f -> new HashSet<>()).add(chunk);
+                }
+                final List<Undo> result = new ArrayList<>();
+                for (Map.Entry<Path, Set<Long>> entry : files.entrySet()) {
+                    try {
+                        take(entry.getKey(), entry.getValue(), result);
+                    } catch (IOException ioe) {
+                        plugin.getLogger().log(Level.SEVERE, "Undoing from " + entry.getKey(), ioe);
+                    }
+                }
+                plugin.getServer().getScheduler().runTask(plugin, () -> callback.accept(result));
+            });
+    }
+
+    /**
+     * Decode the matching records of one journal and write it back
+     * without them.
+     */
+    private static void take(Path file, Set<Long> chunks, List<Undo> result) throws IOException {
+        if (!Files.exists(file)) return;
+        final List<Undo> taken = new ArrayList<>();
+        final ByteArrayOutputStream kept = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(kept);
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        boolean anyKept = false;
+        try (DataInputStream in = new DataInputStream(Files.newInputStream(file))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("Unknown format");
+            }
+            while (true) {
+                final int chunkX;
+                try {
+                    chunkX = in.readInt();
+                } catch (EOFException eof) {
+                    break;
+                }
+                final int chunkZ = in.readInt();
+                final byte[] record = new byte[in.readInt()];
+                in.readFully(record);
+                if (chunks.contains(BulkJob.chunkKey(chunkX, chunkZ))) {
+                    taken.add(decode(chunkX, chunkZ, record));
+                } else {
+                    out.writeInt(chunkX);
+                    out.writeInt(chunkZ);
+                    out.writeInt(record.length);
+                    out.write(record);
+                    anyKept = true;
+                }
+            }
+        }
+        if (taken.isEmpty()) return;
+        if (anyKept) {
+            final Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+            Files.write(tmp, kept.toByteArray());
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } else {
+            Files.delete(file);
+        }
+        for (int i = taken.size() - 1; i >= 0; i -= 1) {
+            result.add(taken.get(i));
+        }
+    }
+
+    /**
+     * Write the original blocks back where the written material is
+     * still in place.  Block states may have changed, such as
+     * fences connecting or leaves decaying, but a different
+     * material means somebody else changed the block since.  Must
+     * be called on the main thread.
+     * @return the number of blocks written
+     */
+    static int restore(World world, Undo undo) {
+        final WorldVoxels live = new WorldVoxels(world);
+        for (int i = 0; i < undo.keys().length; i += 1) {
+            final long key = undo.keys()[i];
+            final int x = ChunkView.keyX(key);
+            final int y = ChunkView.keyY(key);
+            final int z = ChunkView.keyZ(key);
+            if (live.getType(x, y, z) != undo.after()[i].getMaterial()) continue;
+            live.set(x, y, z, undo.before()[i]);
+        }
+        return live.getWrites();
+    }
+
+    /**
+     * Finish all pending appends.
+     */
+    public void shutdown() {
+        thread.shutdown();
+        try {
+            if (!thread.awaitTermination(10, TimeUnit.SECONDS)) {
+                plugin.getLogger().warning("Journal did not finish in time");
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static byte[] deflate(byte[] input) {
+        final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        deflater.setInput(input);
+        deflater.finish();
+        final ByteArrayOutputStream result = new ByteArrayOutputStream(input.length / 2 + 16);
+        final byte[] buffer = new byte[4096];
+        while (!deflater.finished()) {
+            final int length = deflater.deflate(buffer);
+            result.write(buffer, 0, length);
+        }
+        deflater.end();
+        return result.toByteArray();
+    }
+
+    private static byte[] inflate(byte[] input) throws IOException {
+        final Inflater inflater = new Inflater();
+        inflater.setInput(input);
+        final ByteArrayOutputStream result = new ByteArrayOutputStream(input.length * 4);
+        final byte[] buffer = new byte[4096];
+        try {
+            while (!inflater.finished()) {
+                final int length = inflater.inflate(buffer);
+                if (length == 0 && inflater.needsInput()) throw new EOFException("Truncated record");
+                result.write(buffer, 0, length);
+            }
+        } catch (DataFormatException dfe) {
+            throw new IOException(dfe);
+        } finally {
+            inflater.end();
+        }
+        return result.toByteArray();
+    }
+
+    private static int zigzag(int value) {
+        return (value << 1) ^ (value >> 31);
+    }
+
+    private static int unzigzag(int value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static void writeVarInt(ByteArrayOutputStream out, int value) {
+        writeVarLong(out, value & 0xFFFFFFFFL);
+    }
+
+    private static void writeVarLong(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static int readVarInt(DataInputStream in) throws IOException {
+        return (int) readVarLong(in);
+    }
+
+    private static long readVarLong(DataInputStream in) throws IOException {
+        long result = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            final int b = in.readUnsignedByte();
+            result |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return result;
+        }
+        throw new IOException("Varint too long");
+    }
+}
@@ -0,0 +1,150 @@
+package com.cavetale.caves;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.LongVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * The batch kernel of BatchNoise on the Vector API.  Only loaded
+ * once the module is known to be present.
+ *
+ * The arithmetic is SimplexNoiseGenerator.noise, lane by lane and
+ * in the same order, without fused multiply-add, so the results
+ * are identical.  Branches become masks.  Hashing the corners
+ * through the permutation table stays scalar, since gathers need
+ * their indices in an array anyway.
+ */
+final class VectorNoise {
+    private static final VectorSpecies<Double> DOUBLES = DoubleVector.SPECIES_PREFERRED;
+    private static final VectorSpecies<Long> LONGS = DOUBLES.withLanes(long.class);
+    private static final double F3 = 1.0 / 3.0;
+    private static final double G3 = 1.0 / 6.0;
+    private static final double[] GRADIENT_X = gradients(0);
+    private static final double[] GRADIENT_Y = gradients(1);
+    private static final double[] GRADIENT_Z = gradients(2);
+
+    private VectorNoise() { }
+
+    private static double[] gradients(int axis) {
+        final double[] result = new double[12];
+        for (int i = 0; i < 12; i += 1) {
+            result[i] = BatchNoise.getGradient(i, axis);
+        }
+        return result;
+    }
+
+    /**
+     * Evaluate whole vectors from the start of the arrays.
+     * @return the number of points done, leaving the rest to the
+     *   caller
+     */
+    static int noise(BatchNoise generator, double[] xs, double[] ys, double[] zs, double[] out, int count) {
+        final int lanes = DOUBLES.length();
+        final int bound = DOUBLES.loopBound(count);
+        if (bound == 0) return 0;
+        final int[] perm = generator.getPermutation();
+        final double offsetX = generator.getOffsetX();
+        final double offsetY = generator.getOffsetY();
+        final double offsetZ = generator.getOffsetZ();
+        final long[] cellI = new long[lanes];
+        final long[] cellJ = new long[lanes];
+        final long[] cellK = new long[lanes];
+        final int[][] corners = new int[4][lanes];
+        for (int i = 0; i < bound; i += lanes) {
+            final DoubleVector xin = DoubleVector.fromArray(DOUBLES, xs, i).add(offsetX);
+            final DoubleVector yin = DoubleVector.fromArray(DOUBLES, ys, i).add(offsetY);
+            final DoubleVector zin = DoubleVector.fromArray(DOUBLES, zs, i).add(offsetZ);
+            // Skew to find the simplex cell, and unskew its origin
+            final DoubleVector s = xin.add(yin).add(zin).mul(F3);
+            final LongVector ci = floor(xin.add(s));
+            final LongVector cj = floor(yin.add(s));
+            final LongVector ck = floor(zin.add(s));
+            final DoubleVector t = toDouble(ci.add(cj).add(ck)).mul(G3);
+            final DoubleVector x0 = xin.sub(toDouble(ci).sub(t));
+            final DoubleVector y0 = yin.sub(toDouble(cj).sub(t));
+            final DoubleVector z0 = zin.sub(toDouble(ck).sub(t));
+            // Offsets of the second and third corner
+            final VectorMask<Double> xy = x0.compare(VectorOperators.GE, y0);
+            final VectorMask<Double> yz = y0.compare(VectorOperators.GE, z0);
+            final VectorMask<Double> xz = x0.compare(VectorOperators.GE, z0);
+            final VectorMask<Double> i1 = xy.and(xz);
+            final VectorMask<Double> j1 = xy.not().and(yz);
+            final VectorMask<Double> k1 = yz.not().and(xy.not().or(xz.not()));
+            final VectorMask<Double> i2 = xy.or(yz.and(xz));
+            final VectorMask<Double> j2 = xy.not().or(yz);
+            final VectorMask<Double> k2 = yz.not().or(xy.not().and(xz.not()));
+            ci.intoArray(cellI, 0);
+            cj.intoArray(cellJ, 0);
+            ck.intoArray(cellK, 0);
+            hash(perm, cellI, cellJ, cellK, i1.toLong(), j1.toLong(), k1.toLong(),
+                 i2.toLong(), j2.toLong(), k2.toLong(), corners);
+            DoubleVector n = corner(x0, y0, z0, corners[0]);
+            n = n.add(corner(x0.sub(1.0, i1).add(G3),
+                             y0.sub(1.0, j1).add(G3),
+                             z0.sub(1.0, k1).add(G3),
+                             corners[1]));
+            n = n.add(corner(x0.sub(1.0, i2).add(2.0 * G3),
+                             y0.sub(1.0, j2).add(2.0 * G3),
+                             z0.sub(1.0, k2).add(2.0 * G3),
+                             corners[2]));
+            n = n.add(corner(x0.sub(1.0).add(3.0 * G3),
+                             y0.sub(1.0).add(3.0 * G3),
+                             z0.sub(1.0).add(3.0 * G3),
+                             corners[3]));
+            n.mul(32.0).intoArray(out, i);
+        }
+        return bound;
+    }
+
+    /**
+     * NoiseGenerator.floor, which is one too low for negative
+     * integers.
+     */
+    private static LongVector floor(DoubleVector v) {
+        final LongVector result = (LongVector) v.convert(VectorOperators.D2L, 0);
+        return result.sub(1L, v.compare(VectorOperators.LT, 0.0).cast(LONGS));
+    }
+
+    private static DoubleVector toDouble(LongVector v) {
+        return (DoubleVector) v.convert(VectorOperators.L2D, 0);
+    }
+
+    /**
+     * Gradient indices of the four corners of each lane.  Corner
+     * offsets come as lane bits.
+     */
+    private static void hash(int[] perm, long[] cellI, long[] cellJ, long[] cellK,
+                             long i1, long j1, long k1, long i2, long j2, long k2, int[][] corners) {
+        for (int lane = 0; lane < cellI.length; lane += 1) {
+            final int ii = (int) cellI[lane] & 255;
+            final int jj = (int) cellJ[lane] & 255;
+            final int kk = (int) cellK[lane] & 255;
+            final int a1 = (int) (i1 >>> lane) & 1;
+            final int b1 = (int) (j1 >>> lane) & 1;
+            final int c1 = (int) (k1 >>> lane) & 1;
+            final int a2 = (int) (i2 >>> lane) & 1;
+            final int b2 = (int) (j2 >>> lane) & 1;
+            final int c2 = (int) (k2 >>> lane) & 1;
+            corners[0][lane] = perm[ii + perm[jj + perm[kk]]] % 12;
+            corners[1][lane] = perm[ii + a1 + perm[jj + b1 + perm[kk + c1]]] % 12;
+            corners[2][lane] = perm[ii + a2 + perm[jj + b2 + perm[kk + c2]]] % 12;
+            corners[3][lane] = perm[ii + 1 + perm[jj + 1 + perm[kk + 1]]] % 12;
+        }
+    }
+
+    /**
+     * Contribution of one corner, zero where it is out of reach.
+     */
+    private static DoubleVector corner(DoubleVector x, DoubleVector y, DoubleVector z, int[] gradients) {
+        final DoubleVector gx = DoubleVector.fromArray(DOUBLES, GRADIENT_X, 0, gradients, 0);
+        final DoubleVector gy = DoubleVector.fromArray(DOUBLES, GRADIENT_Y, 0, gradients, 0);
+        final DoubleVector gz = DoubleVector.fromArray(DOUBLES, GRADIENT_Z, 0, gradients, 0);
+        final DoubleVector dot = gx.mul(x).add(gy.mul(y)).add(gz.mul(z));
+        final DoubleVector t = DoubleVector.broadcast(DOUBLES, 0.6)
+            .sub(x.mul(x)).sub(y.mul(y)).sub(z.mul(z));
+        final DoubleVector tt = t.mul(t);
+        return tt.mul(tt).mul(dot).blend(0.0, t.compare(VectorOperators.LT, 0.0));
+    }
+}
@@ -0,0 +1,127 @@
+package com.cavetale.caves;
+
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import lombok.Getter;
+import org.bukkit.Material;
+import org.bukkit.block.data.BlockData;
+
+/**
+ * A box of blocks in a flat array, without a world.  Each block is
+ * a palette index, so reads are one array access.  Writes land in
+ * the array right away and physics are ignored.
+ *
+ * Like ChunkView, blocks outside the box read as bedrock and
+ * blocks outside the height range as void air.  The palette goes
+ * by identity, which suits the interned block data of Blocks.
+ */
+final class VoxelArray implements Voxels {
+    private static final int MAX_PALETTE = 1 << 16;
+    @Getter private final int originX;
+    @Getter private final int originZ;
+    @Getter private final int sizeX;
+    @Getter private final int sizeZ;
+    @Getter private final int minHeight;
+    @Getter private final int maxHeight;
+    private final char[] blocks;
+    private BlockData[] palette;
+    private Material[] materials;
+    private int paletteSize;
+    private final Map<BlockData, Integer> paletteIds;
+    @Getter private int writes;
+
+    /**
+     * Create a box full of air.
+     */
+    VoxelArray(final int originX, final int originZ, final int sizeX, final int sizeZ,
+               final int minHeight, final int maxHeight) {
+        this.originX = originX;
+        this.originZ = originZ;
+        this.sizeX = sizeX;
+        this.sizeZ = sizeZ;
+        this.minHeight = minHeight;
+        this.maxHeight = maxHeight;
+        this.blocks = new char[sizeX * sizeZ * (maxHeight - minHeight)];
+        this.palette = new BlockData[16];
+        this.materials = new Material[16];
+        this.paletteIds = new IdentityHashMap<>();
+        idOf(Blocks.of(Material.AIR));
+    }
+
+    private VoxelArray(final VoxelArray other) {
+        this.originX = other.originX;
+        this.originZ = other.originZ;
+        this.sizeX = other.sizeX;
+        this.sizeZ = other.sizeZ;
+        this.minHeight = other.minHeight;
+        this.maxHeight = other.maxHeight;
+        this.blocks = other.blocks.clone();
+        this.palette = other.palette.clone();
+        this.materials = other.materials.clone();
+        this.paletteSize = other.paletteSize;
+        this.paletteIds = new IdentityHashMap<>(other.paletteIds);
+    }
+
+    /**
+     * The box around a chunk and its 8 neighbors, matching what a
+     * ChunkView captures.
+     */
+    static VoxelArray around(int chunkX, int chunkZ, int minHeight, int maxHeight) {
+        return new VoxelArray((chunkX - 1) << 4, (chunkZ - 1) << 4, 48, 48, minHeight, maxHeight);
+    }
+
+    /**
+     * Copy the blocks, but not the write count.
+     */
+    public VoxelArray copy() {
+        return new VoxelArray(this);
+    }
+
+    private int index(int x, int y, int z) {
+        final int dx = x - originX;
+        final int dz = z - originZ;
+        if (dx < 0 || dx >= sizeX || dz < 0 || dz >= sizeZ) return -1;
+        return ((y - minHeight) * sizeZ + dz) * sizeX + dx;
+    }
+
+    private int idOf(BlockData data) {
+        Integer id = paletteIds.get(data);
+        if (id != null) return id;
+        if (paletteSize == MAX_PALETTE) {
+            throw new IllegalStateException("Palette full: " + data);
+        }
+        if (paletteSize == palette.length) {
+            palette = Arrays.copyOf(palette, paletteSize * 2);
+            materials = Arrays.copyOf(materials, paletteSize * 2);
+        }
+        final int result = paletteSize++;
+        palette[result] = data;
+        materials[result] = data.getMaterial();
+        paletteIds.put(data, result);
+        return result;
+    }
+
+    @Override
+    public Material getType(int x, int y, int z) {
+        if (y < minHeight || y >= maxHeight) return Material.VOID_AIR;
+        final int index = index(x, y, z);
+        return index < 0 ? Material.BEDROCK : materials[blocks[index]];
+    }
+
+    @Override
+    public BlockData getBlockData(int x, int y, int z) {
+        if (y < minHeight || y >= maxHeight) return Blocks.of(Material.VOID_AIR);
+        final int index = index(x, y, z);
+        return index < 0 ? Blocks.of(Material.BEDROCK) : palette[blocks[index]];
+    }
+
+    @Override
+    public void set(int x, int y, int z, BlockData data, boolean applyPhysics) {
+        writes += 1;
+        if (y < minHeight || y >= maxHeight) return;
+        final int index = index(x, y, z);
+        if (index < 0) return;
+        blocks[index] = (char) idOf(data);
+    }
+}
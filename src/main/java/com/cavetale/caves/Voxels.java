@@ -0,0 +1,60 @@
+package com.cavetale.caves;
+
+import org.bukkit.Material;
+import org.bukkit.block.data.BlockData;
+
+/**
+ * Block access by world coordinates, which is all that scanning,
+ * classifying, ores and themes need.  Implementations:
+ *
+ * - ChunkView: snapshots plus an edit buffer, for the pipeline
+ * - WorldVoxels: the live world, main thread only
+ * - VoxelArray: a flat array, for offline use and benchmarks
+ */
+interface Voxels {
+    int getMinHeight();
+
+    int getMaxHeight();
+
+    Material getType(int x, int y, int z);
+
+    BlockData getBlockData(int x, int y, int z);
+
+    void set(int x, int y, int z, BlockData data, boolean applyPhysics);
+
+    /**
+     * Calls to set so far, including overwrites and writes out of
+     * bounds.
+     */
+    int getWrites();
+
+    /**
+     * Tell if the section of a chunk containing y is known to be
+     * all air, without looking at its blocks.  False means it may
+     * or may not be.
+     */
+    default boolean isSectionEmpty(int chunkX, int y, int chunkZ) {
+        return false;
+    }
+
+    default boolean isEmpty(int x, int y, int z) {
+        return getType(x, y, z).isAir();
+    }
+
+    default boolean isLiquid(int x, int y, int z) {
+        Material mat = getType(x, y, z);
+        return mat == Material.WATER || mat == Material.LAVA;
+    }
+
+    default void set(int x, int y, int z, Material material) {
+        set(x, y, z, Blocks.of(material), false);
+    }
+
+    default void set(int x, int y, int z, Material material, boolean applyPhysics) {
+        set(x, y, z, Blocks.of(material), applyPhysics);
+    }
+
+    default void set(int x, int y, int z, BlockData data) {
+        set(x, y, z, data, false);
+    }
+}
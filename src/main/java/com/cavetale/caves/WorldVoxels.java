@@ -0,0 +1,43 @@
+package com.cavetale.caves;
+
+import lombok.Getter;
+import org.bukkit.Material;
+import org.bukkit.World;
+import org.bukkit.block.data.BlockData;
+
+/**
+ * The live world.  Reads and writes go straight to the server, so
+ * this must only be used on the main thread, where edits are
+ * applied and deferred actions run.
+ */
+final class WorldVoxels implements Voxels {
+    @Getter private final World world;
+    @Getter private final int minHeight;
+    @Getter private final int maxHeight;
+    @Getter private int writes;
+
+    WorldVoxels(final World world) {
+        this.world = world;
+        this.minHeight = world.getMinHeight();
+        this.maxHeight = world.getMaxHeight();
+    }
+
+    @Override
+    public Material getType(int x, int y, int z) {
+        if (y < minHeight || y >= maxHeight) return Material.VOID_AIR;
+        return world.getType(x, y, z);
+    }
+
+    @Override
+    public BlockData getBlockData(int x, int y, int z) {
+        if (y < minHeight || y >= maxHeight) return Blocks.of(Material.VOID_AIR);
+        return world.getBlockData(x, y, z);
+    }
+
+    @Override
+    public void set(int x, int y, int z, BlockData data, boolean applyPhysics) {
+        writes += 1;
+        if (y < minHeight || y >= maxHeight) return;
+        world.getBlockAt(x, y, z).setBlockData(data, applyPhysics);
+    }
+}